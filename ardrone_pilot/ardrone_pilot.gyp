@@ -16,6 +16,7 @@
         # After r1913 merged we can change back to:
         # 'java_in_dir': '.',
         'java_in_dir': '<(DEPTH)/ardrone_pilot',
+        'additional_src_dirs': [ '<(DEPTH)/common/src' ],
         'js_file': 'ardrone_pilot.js',
         'json_file': 'ardrone_pilot.json',
         'input_jars_paths': [
@@ -23,11 +23,33 @@ function createPromise(msg) {
   return promise;
 }
 
-exports.connect = function(ipAddress) {
+// Major control states of the drone, as in ARDroneNavdataEvent.controlState.
+var ARDroneControlState = {
+  DEFAULT: 0,
+  INIT: 1,
+  LANDED: 2,
+  FLYING: 3,
+  HOVERING: 4,
+  TEST: 5,
+  TAKING_OFF: 6,
+  GOING_TO_HOVER: 7,
+  LANDING: 8,
+  LOOPING: 9
+};
+exports.ARDroneControlState = ARDroneControlState;
+
+// |rate| is the number of control ticks per second, 30 by default.
+// |navdataRate| is the maximum number of 'navdata' events per second, 15 by
+// default, up to 60, 0 for none.
+exports.connect = function(ipAddress, rate, navdataRate) {
   var msg = {
     'cmd': 'connect',
     'ipAddress': ipAddress
   };
+  if (rate !== undefined)
+    msg.rate = rate;
+  if (navdataRate !== undefined)
+    msg.navdataRate = navdataRate;
   return createPromise(msg);
 };
 
@@ -45,6 +67,8 @@ exports.ftrim = function() {
   return createPromise(msg);
 };
 
+// takeoff, landing, emergency and setConfig resolve once navdata shows the
+// drone took the command into account, they reject if it did not in time.
 exports.takeoff = function() {
   var msg = {
     'cmd': 'takeoff'
@@ -59,6 +83,23 @@ exports.landing = function() {
   return createPromise(msg);
 };
 
+// Toggle the emergency state: cut the motors, or recover from it.
+exports.emergency = function() {
+  var msg = {
+    'cmd': 'emergency'
+  };
+  return createPromise(msg);
+};
+
+exports.setConfig = function(name, value) {
+  var msg = {
+    'cmd': 'config',
+    'name': name,
+    'value': String(value)
+  };
+  return createPromise(msg);
+};
+
 exports.hover = function() {
   var msg = {
     'cmd': 'hover'
@@ -115,18 +156,105 @@ exports.yaw_minus = function() {
   return createPromise(msg);
 };
 
+// Set the attitude of the drone, each axis in [-1, 1], all zeros meaning
+// hover. It skips the promise round trip so it can be called at gamepad rate
+// (60-120Hz): the four axes go out as one short synchronous message. Return
+// false if the drone is not connected.
+exports.move = function(roll, pitch, gaz, yaw) {
+  var msg = 'M' + _encodeAxis(roll) + ',' + _encodeAxis(pitch) + ',' +
+            _encodeAxis(gaz) + ',' + _encodeAxis(yaw);
+  return extension.internal.sendSyncMessage(msg) === 'true';
+};
+
+function _encodeAxis(value) {
+  value = Math.max(-1, Math.min(1, Number(value) || 0));
+  return Math.round(value * 1000);
+}
+
+// Resolve with the tick count, overruns and jitter (in microseconds) of the
+// control loop, and the commands queued, replaced and dropped by type.
+exports.getStats = function() {
+  var msg = {
+    'cmd': 'getStats'
+  };
+  return createPromise(msg);
+};
+
+function _addConstProperty(obj, propertyKey, propertyValue) {
+  Object.defineProperty(obj, propertyKey, {
+    configurable: false,
+    writable: false,
+    value: propertyValue
+  });
+}
+
+// Angles are in degrees, altitude in meters and speeds in meters per second.
+// Only the state flags are set while the drone is in bootstrap mode.
+window.ARDroneNavdataEvent = function(data) {
+  _addConstProperty(this, 'sequence', data.sequence);
+  _addConstProperty(this, 'state', data.state);
+  _addConstProperty(this, 'flying', data.flying);
+  _addConstProperty(this, 'emergency', data.emergency);
+  _addConstProperty(this, 'lowBattery', data.lowBattery);
+  if (data.controlState !== undefined) {
+    _addConstProperty(this, 'controlState', data.controlState);
+    _addConstProperty(this, 'battery', data.battery);
+    _addConstProperty(this, 'pitch', data.pitch / 1000);
+    _addConstProperty(this, 'roll', data.roll / 1000);
+    _addConstProperty(this, 'yaw', data.yaw / 1000);
+    _addConstProperty(this, 'altitude', data.altitude / 1000);
+    _addConstProperty(this, 'vx', data.vx / 1000);
+    _addConstProperty(this, 'vy', data.vy / 1000);
+    _addConstProperty(this, 'vz', data.vz / 1000);
+  }
+  this.prototype = new Event('ARDroneNavdataEvent');
+};
+
 extension.setMessageListener(function(json) {
   var msg = JSON.parse(json);
 
-  if (msg.data.error) {
-    g_async_calls[msg.asyncCallId].reject(msg.data.error);
-  } else {
-    g_async_calls[msg.asyncCallId].resolve(msg.data); 
+  // Handle promises
+  if (!msg.eventName) {
+    if (msg.data.error) {
+      g_async_calls[msg.asyncCallId].reject(msg.data.error);
+    } else {
+      g_async_calls[msg.asyncCallId].resolve(msg.data);
+    }
+
+    delete g_async_calls[msg.asyncCallId];
+    return;
   }
 
-  delete g_async_calls[msg.asyncCallId];
+  // Handle events
+  for (var id in g_listeners) {
+    if (g_listeners[id]['eventName'] === msg.eventName) {
+      var event = null;
+      if (msg.eventName == 'navdata') {
+        event = new ARDroneNavdataEvent(msg.data);
+      }
+      g_listeners[id]['callback'](event);
+    }
+  }
 });
 
+// 'navdata' events come at most at the rate given to connect(), each with
+// the latest navdata.
+exports.addEventListener = function(eventName, callback) {
+  if (eventName == 'navdata') {
+    var listener = {
+      'eventName': eventName,
+      'callback': callback
+    };
+
+    var listener_id = g_next_listener_id;
+    g_next_listener_id += 1;
+    g_listeners[listener_id] = listener;
+    return;
+  }
+
+  console.log('Unsupportted event: ' + eventName);
+};
+
 var _sendSyncMessage = function(msg) {
   return extension.internal.sendSyncMessage(JSON.stringify(msg));
 };
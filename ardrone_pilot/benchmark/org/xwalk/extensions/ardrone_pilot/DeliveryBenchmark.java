@@ -0,0 +1,190 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/*
+ * How long ATCommandDelivery takes to get two CONFIGs and a takeoff confirmed
+ * over a lossy link.
+ *
+ * A stand-in for the drone listens on 127.0.0.1, drops every AT datagram with
+ * a probability of LOSS, and reports its state in 16-byte navdata packets at
+ * about 50Hz: REF sets or clears the flying bit, CONFIG sets the command ACK
+ * bit and CTRL clears it. Run it on the host from the module directory with:
+ *
+ *   javac -d /tmp/bench -sourcepath src:benchmark:../common/src:../common/benchmark \
+ *       benchmark/org/xwalk/extensions/ardrone_pilot/DeliveryBenchmark.java
+ *   java -cp /tmp/bench org.xwalk.extensions.ardrone_pilot.DeliveryBenchmark
+ */
+public class DeliveryBenchmark {
+    private static final int ROUNDS = 10;
+    private static final double LOSS = 0.5;
+    private static final int RATE = 30;
+
+    private static volatile int sState;
+    private static volatile Random sRandom;
+
+    public static void main(String[] args) throws Exception {
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        final DatagramSocket commands = new DatagramSocket(ATCommandManager.CMD_PORT, address);
+        final DatagramSocket navdata = new DatagramSocket(NavdataReceiver.NAVDATA_PORT, address);
+        startDrone(commands, navdata);
+
+        ARDronePilotLoop loop = new ARDronePilotLoop();
+        loop.start();
+        long worst = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            sState = Navdata.STATE_BOOTSTRAP;
+            sRandom = new Random(round);
+
+            ATCommandManager manager = new ATCommandManager(new ATCommandQueue(10), RATE);
+            loop.connect(address, manager, new NavdataReceiver(manager, null, 0));
+
+            Result config1 = new Result();
+            Result config2 = new Result();
+            Result takeoff = new Result();
+            long start = System.nanoTime();
+            manager.deliver(new ATCommand(new ConfigCommand("general:navdata_demo", "TRUE")), config1);
+            manager.deliver(new ATCommand(new ConfigCommand("control:altitude_max", "3000")), config2);
+            manager.deliver(ATCommand.TAKEOFF, takeoff);
+
+            long end = start + ATCommandDelivery.REF_TIMEOUT * 2000000L;
+            while (!(config1.done() && config2.done() && takeoff.done()) && System.nanoTime() < end) {
+                Thread.sleep(5);
+            }
+            System.out.println(String.format("round %d: CONFIG %s, CONFIG %s, takeoff %s",
+                    round, config1.format(start), config2.format(start), takeoff.format(start)));
+            worst = Math.max(worst, Math.max(takeoff.elapsed(start),
+                    Math.max(config1.elapsed(start), config2.elapsed(start))));
+
+            loop.disconnect();
+        }
+        loop.stop();
+        System.out.println(String.format("%.0f%% of the AT datagrams lost: all confirmed within %d ms",
+                LOSS * 100, worst / 1000000));
+        System.exit(0);
+    }
+
+    private static class Result implements ATCommandDelivery.Listener {
+        private volatile long mTime;
+        private volatile String mFailure;
+
+        @Override
+        public void onConfirmed(ATCommand command) {
+            mTime = System.nanoTime();
+        }
+
+        @Override
+        public void onFailed(ATCommand command, String reason) {
+            mFailure = reason;
+            mTime = System.nanoTime();
+        }
+
+        boolean done() { return mTime != 0; }
+
+        long elapsed(long start) {
+            return done() && mFailure == null ? mTime - start : Long.MAX_VALUE;
+        }
+
+        String format(long start) {
+            if (!done()) return "pending";
+            if (mFailure != null) return "failed (" + mFailure + ")";
+            return (mTime - start) / 1000000 + " ms";
+        }
+    }
+
+    private static void startDrone(final DatagramSocket commands, final DatagramSocket navdata) {
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[2048];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    while (true) {
+                        packet.setLength(buffer.length);
+                        commands.receive(packet);
+                        Random random = sRandom;
+                        if (random.nextDouble() < LOSS) continue;
+
+                        String datagram = new String(buffer, 0, packet.getLength(), "US-ASCII");
+                        for (String command : datagram.split("\r")) apply(command);
+                    }
+                } catch (Exception e) {
+                    // Closed.
+                }
+            }
+        }, "Drone AT");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[64];
+                DatagramPacket trigger = new DatagramPacket(buffer, buffer.length);
+                SocketAddress client = null;
+                int sequence = 1;
+                try {
+                    navdata.setSoTimeout(20);
+                    while (true) {
+                        try {
+                            trigger.setLength(buffer.length);
+                            navdata.receive(trigger);
+                            if (!trigger.getSocketAddress().equals(client)) {
+                                client = trigger.getSocketAddress();
+                                sequence = 1;
+                            }
+                        } catch (SocketTimeoutException e) {
+                            // Time for the next packet.
+                        }
+                        if (client == null) continue;
+
+                        byte[] out = new byte[16];
+                        putInt(out, 0, Navdata.NAVDATA_HEADER);
+                        putInt(out, 4, sState);
+                        putInt(out, 8, sequence++);
+                        navdata.send(new DatagramPacket(out, out.length, client));
+                    }
+                } catch (Exception e) {
+                    // Closed.
+                }
+            }
+        }, "Drone navdata");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    private static void apply(String command) {
+        int equals = command.indexOf('=');
+        if (!command.startsWith("AT*") || equals < 0) return;
+
+        String name = command.substring(3, equals);
+        if (name.equals("REF")) {
+            int value = Integer.parseInt(command.split(",")[1]);
+            if ((value & (1 << 9)) != 0) {
+                sState |= Navdata.STATE_FLYING;
+            } else {
+                sState &= ~Navdata.STATE_FLYING;
+            }
+        } else if (name.equals("CONFIG")) {
+            sState = (sState | Navdata.STATE_COMMAND_ACK) & ~Navdata.STATE_BOOTSTRAP;
+        } else if (name.equals("CTRL")) {
+            sState &= ~Navdata.STATE_COMMAND_ACK;
+        }
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+}
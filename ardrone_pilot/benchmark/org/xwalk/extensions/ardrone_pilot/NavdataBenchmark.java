@@ -0,0 +1,153 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+/*
+ * The cost of Navdata.decode() and the event rate of NavdataReceiver.
+ *
+ * First it decodes one demo packet over and over, and reports the time and,
+ * on a HotSpot JVM, the bytes allocated per decode. Then a stand-in for the
+ * drone on 127.0.0.1 replays demo packets at REPLAY_RATE, one in ten with a
+ * wrong checksum, into the real ARDronePilotLoop, and the 'navdata' events
+ * are counted. Run it on the host from the module directory with:
+ *
+ *   javac -d /tmp/bench -sourcepath src:benchmark:../common/src:../common/benchmark \
+ *       benchmark/org/xwalk/extensions/ardrone_pilot/NavdataBenchmark.java
+ *   java -cp /tmp/bench org.xwalk.extensions.ardrone_pilot.NavdataBenchmark
+ */
+public class NavdataBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int DECODES = 1000000;
+
+    private static final int REPLAY_RATE = 200;
+    private static final int REPLAY_SECONDS = 2;
+
+    // Header, demo option and checksum option.
+    private static final int PACKET_SIZE = 16 + 148 + 8;
+
+    public static void main(String[] args) throws Exception {
+        benchmarkDecode();
+        benchmarkReplay();
+        System.exit(0);
+    }
+
+    private static void benchmarkDecode() {
+        byte[] packet = packet(7, false);
+        Navdata navdata = new Navdata();
+        for (int round = 0; round < ROUNDS; round++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            int decoded = 0;
+            for (int i = 0; i < DECODES; i++) {
+                if (navdata.decode(packet, packet.length)) ++decoded;
+            }
+            double time = (System.nanoTime() - start) / (double) DECODES;
+            bytes = allocatedBytes() - bytes;
+            System.out.println(String.format("decode: %.1f ns per packet, %s allocated for %d packets",
+                    time, bytes < 0 ? "n/a" : bytes + " bytes", decoded));
+        }
+    }
+
+    private static void benchmarkReplay() throws Exception {
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        DatagramSocket commands = new DatagramSocket(ATCommandManager.CMD_PORT, address);
+        DatagramSocket drone = new DatagramSocket(NavdataReceiver.NAVDATA_PORT, address);
+
+        ARDronePilotLoop loop = new ARDronePilotLoop();
+        loop.start();
+        ATCommandManager manager = new ATCommandManager(new ATCommandQueue(10), 30);
+        final NavdataMessage message = new NavdataMessage();
+        final int[] events = new int[1];
+        NavdataReceiver receiver = new NavdataReceiver(manager,
+                new NavdataReceiver.EventListener() {
+                    @Override
+                    public void onNavdata(Navdata navdata) {
+                        message.build(navdata);
+                        ++events[0];
+                    }
+                }, NavdataReceiver.DEFAULT_EVENT_RATE);
+        loop.connect(address, manager, receiver);
+
+        byte[] buffer = new byte[64];
+        DatagramPacket trigger = new DatagramPacket(buffer, buffer.length);
+        drone.receive(trigger);
+
+        int count = REPLAY_RATE * REPLAY_SECONDS;
+        long period = 1000000000L / REPLAY_RATE;
+        long start = System.nanoTime();
+        for (int sequence = 1; sequence <= count; sequence++) {
+            byte[] packet = packet(sequence, sequence % 10 == 0);
+            drone.send(new DatagramPacket(packet, packet.length, trigger.getSocketAddress()));
+            long wait = start + sequence * period - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // Let the loop handle the last packets.
+        Thread.sleep(200);
+        loop.stop();
+        commands.close();
+        drone.close();
+
+        System.out.println(String.format(
+                "replay: %d packets in %.2f s, %d decoded, %d invalid, %d events (%.1f per second)",
+                count, seconds, receiver.packets(), receiver.invalidPackets(), events[0],
+                events[0] / seconds));
+    }
+
+    // A demo packet as the drone sends it, with a wrong checksum if |corrupt|.
+    private static byte[] packet(int sequence, boolean corrupt) {
+        byte[] out = new byte[PACKET_SIZE];
+        putInt(out, 0, Navdata.NAVDATA_HEADER);
+        putInt(out, 4, Navdata.STATE_FLYING);
+        putInt(out, 8, sequence);
+
+        int option = 16;
+        putShort(out, option, 0);
+        putShort(out, option + 2, 148);
+        int demo = option + 4;
+        putInt(out, demo, 3 << 16);
+        putInt(out, demo + 4, 87);
+        putInt(out, demo + 8, Float.floatToIntBits(1500f + sequence));
+        putInt(out, demo + 12, Float.floatToIntBits(-2500f));
+        putInt(out, demo + 16, Float.floatToIntBits(90000f));
+        putInt(out, demo + 20, 1234);
+        putInt(out, demo + 24, Float.floatToIntBits(100f));
+        putInt(out, demo + 28, Float.floatToIntBits(-50f));
+
+        int checksum = option + 148;
+        int sum = 0;
+        for (int i = 0; i < checksum; i++) sum += out[i] & 0xff;
+        putShort(out, checksum, 0xffff);
+        putShort(out, checksum + 2, 8);
+        putInt(out, checksum + 4, corrupt ? sum + 1 : sum);
+        return out;
+    }
+
+    // Bytes allocated by the current thread so far, -1 if the JVM cannot tell.
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+        out[offset + 2] = (byte) (value >>> 16);
+        out[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static void putShort(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >>> 8);
+    }
+}
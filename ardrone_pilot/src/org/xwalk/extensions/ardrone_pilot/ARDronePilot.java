@@ -7,10 +7,9 @@ package org.xwalk.extensions.ardrone_pilot;
 import org.xwalk.app.runtime.extension.XWalkExtensionClient;
 import org.xwalk.app.runtime.extension.XWalkExtensionContextClient;
 
-import android.util.Log;
-
 import java.io.IOException;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.HashMap;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -18,16 +17,82 @@ import org.json.JSONObject;
 public class ARDronePilot extends XWalkExtensionClient {
     private static final String TAG = "ARDronePilot";
 
-    private ATCommandManager mATCommandManager;
-    private ATCommandQueue mCommandQueue;
-    private RunnableWithLock mKeepAliveRunnable;
-    private Thread mCommandThread;
-    private Thread mKeepAliveThread;
+    // Sync move messages are "M<roll>,<pitch>,<gaz>,<yaw>", each axis an
+    // integer in [-AXIS_SCALE, AXIS_SCALE], e.g. "M250,-1000,0,0".
+    private static final char SYNC_MOVE = 'M';
+    private static final int AXIS_SCALE = 1000;
+
+    private static final int COMMAND_QUEUE_SIZE = 10;
+
+    private static final int CMD_CONNECT = 0;
+    private static final int CMD_QUIT = 1;
+    private static final int CMD_FTRIM = 2;
+    private static final int CMD_TAKEOFF = 3;
+    private static final int CMD_LANDING = 4;
+    private static final int CMD_EMERGENCY = 5;
+    private static final int CMD_CONFIG = 6;
+    private static final int CMD_HOVER = 7;
+    private static final int CMD_PITCH_PLUS = 8;
+    private static final int CMD_PITCH_MINUS = 9;
+    private static final int CMD_ROLL_PLUS = 10;
+    private static final int CMD_ROLL_MINUS = 11;
+    private static final int CMD_YAW_PLUS = 12;
+    private static final int CMD_YAW_MINUS = 13;
+    private static final int CMD_MOVE = 14;
+    private static final int CMD_GET_STATS = 15;
+
+    // One hash lookup per message instead of comparing |cmd| with every name.
+    private static final HashMap<String, Integer> sCommandIds = new HashMap<String, Integer>();
+    static {
+        sCommandIds.put("connect", CMD_CONNECT);
+        sCommandIds.put("quit", CMD_QUIT);
+        sCommandIds.put("ftrim", CMD_FTRIM);
+        sCommandIds.put("takeoff", CMD_TAKEOFF);
+        sCommandIds.put("landing", CMD_LANDING);
+        sCommandIds.put("emergency", CMD_EMERGENCY);
+        sCommandIds.put("config", CMD_CONFIG);
+        sCommandIds.put("hover", CMD_HOVER);
+        sCommandIds.put("pitch_plus", CMD_PITCH_PLUS);
+        sCommandIds.put("pitch_minus", CMD_PITCH_MINUS);
+        sCommandIds.put("roll_plus", CMD_ROLL_PLUS);
+        sCommandIds.put("roll_minus", CMD_ROLL_MINUS);
+        sCommandIds.put("yaw_plus", CMD_YAW_PLUS);
+        sCommandIds.put("yaw_minus", CMD_YAW_MINUS);
+        sCommandIds.put("move", CMD_MOVE);
+        sCommandIds.put("getStats", CMD_GET_STATS);
+    }
+
+    // The fixed steps of the pitch, roll and yaw commands.
+    private static final ATCommand PITCH_PLUS =
+            new ATCommand(new MoveCommand(false, 0.25f, 0f, 0f, 0f));
+    private static final ATCommand PITCH_MINUS =
+            new ATCommand(new MoveCommand(false, -0.25f, 0f, 0f, 0f));
+    private static final ATCommand ROLL_PLUS =
+            new ATCommand(new MoveCommand(false, 0f, 0.25f, 0f, 0f));
+    private static final ATCommand ROLL_MINUS =
+            new ATCommand(new MoveCommand(false, 0f, -0.25f, 0f, 0f));
+    private static final ATCommand YAW_PLUS =
+            new ATCommand(new MoveCommand(false, 0f, 0f, 0f, 0.25f));
+    private static final ATCommand YAW_MINUS =
+            new ATCommand(new MoveCommand(false, 0f, 0f, 0f, -0.25f));
+
+    // One loop thread for the lifetime of the extension, the connection
+    // objects are replaced on every connect. The handlers which are not
+    // synchronized read mATCommandManager once, a concurrent quit() nulls it,
+    // and mNavdataReceiver after it.
+    private final ARDronePilotLoop mLoop;
+    private volatile ATCommandManager mATCommandManager;
+    private NavdataReceiver mNavdataReceiver;
+    private InetAddress mAddress;
 
     public ARDronePilot(String name, String jsApiContent, XWalkExtensionContextClient xwalkContext) {
         super(name, jsApiContent, xwalkContext);
-        mCommandThread = null;
-        mKeepAliveThread = null;
+        mLoop = new ARDronePilotLoop();
+        mATCommandManager = null;
+    }
+
+    private boolean isConnected() {
+        return mATCommandManager != null;
     }
 
     private void handleMessage(int instanceID, String message) {
@@ -35,31 +100,72 @@ public class ARDronePilot extends XWalkExtensionClient {
             JSONObject jsonInput = new JSONObject(message);
             String cmd = jsonInput.getString("cmd");
 
+            Integer cmdId = sCommandIds.get(cmd);
+            if (cmdId == null) {
+                ARDronePilotLog.LOG.e(TAG, "Unexpected message received: " + message);
+                postReply(instanceID, jsonInput.getString("asyncCallId"),
+                        setErrorMessage("Unknown command: " + cmd));
+                return;
+            }
+
             JSONObject jsonOutput = new JSONObject();
-            if (cmd.equals("connect")) {
-                jsonOutput.put("data", connect(jsonInput.getString("ipAddress")));
-            } else if (cmd.equals("quit")) {
-                jsonOutput.put("data", quit());
-            } else if (cmd.equals("ftrim")) {
-                jsonOutput.put("data", ftrim());
-            } else if (cmd.equals("takeoff")) {
-                jsonOutput.put("data", takeoff());
-            } else if (cmd.equals("landing")) {
-                jsonOutput.put("data", landing());
-            } else if (cmd.equals("hover")) {
-                jsonOutput.put("data", hover());
-            } else if (cmd.equals("pitch_plus")) {
-                jsonOutput.put("data", pitch_plus());
-            } else if (cmd.equals("pitch_minus")) {
-                jsonOutput.put("data", pitch_minus());
-            } else if (cmd.equals("roll_plus")) {
-                jsonOutput.put("data", roll_plus());
-            } else if (cmd.equals("roll_minus")) {
-                jsonOutput.put("data", roll_minus());
-            } else if (cmd.equals("yaw_plus")) {
-                jsonOutput.put("data", yaw_plus());
-            } else if (cmd.equals("yaw_minus")) {
-                jsonOutput.put("data", yaw_minus());
+            switch (cmdId) {
+                case CMD_CONNECT:
+                    jsonOutput.put("data", connect(jsonInput.getString("ipAddress"),
+                            jsonInput.optInt("rate", ATCommandManager.DEFAULT_RATE),
+                            jsonInput.optInt("navdataRate", NavdataReceiver.DEFAULT_EVENT_RATE)));
+                    break;
+                case CMD_QUIT:
+                    jsonOutput.put("data", quit());
+                    break;
+                case CMD_FTRIM:
+                    jsonOutput.put("data", ftrim());
+                    break;
+                case CMD_TAKEOFF:
+                    deliver(instanceID, jsonInput.getString("asyncCallId"), ATCommand.TAKEOFF, cmd);
+                    return;
+                case CMD_LANDING:
+                    deliver(instanceID, jsonInput.getString("asyncCallId"), ATCommand.LANDING, cmd);
+                    return;
+                case CMD_EMERGENCY:
+                    deliver(instanceID, jsonInput.getString("asyncCallId"), ATCommand.EMERGENCY, cmd);
+                    return;
+                case CMD_CONFIG:
+                    deliver(instanceID, jsonInput.getString("asyncCallId"), new ATCommand(
+                            new ConfigCommand(jsonInput.getString("name"), jsonInput.getString("value"))),
+                            cmd);
+                    return;
+                case CMD_HOVER:
+                    jsonOutput.put("data", hover());
+                    break;
+                case CMD_PITCH_PLUS:
+                    jsonOutput.put("data", pitch_plus());
+                    break;
+                case CMD_PITCH_MINUS:
+                    jsonOutput.put("data", pitch_minus());
+                    break;
+                case CMD_ROLL_PLUS:
+                    jsonOutput.put("data", roll_plus());
+                    break;
+                case CMD_ROLL_MINUS:
+                    jsonOutput.put("data", roll_minus());
+                    break;
+                case CMD_YAW_PLUS:
+                    jsonOutput.put("data", yaw_plus());
+                    break;
+                case CMD_YAW_MINUS:
+                    jsonOutput.put("data", yaw_minus());
+                    break;
+                case CMD_MOVE:
+                    jsonOutput.put("data", move((float) jsonInput.getDouble("roll"),
+                            (float) jsonInput.getDouble("pitch"), (float) jsonInput.getDouble("gaz"),
+                            (float) jsonInput.getDouble("yaw")));
+                    break;
+                case CMD_GET_STATS:
+                    jsonOutput.put("data", getStats());
+                    break;
+                default:
+                    return;
             }
 
             jsonOutput.put("asyncCallId", jsonInput.getString("asyncCallId"));
@@ -69,172 +175,304 @@ public class ARDronePilot extends XWalkExtensionClient {
         }
     }
 
-    private JSONObject connect(String ipAddress) {
-        mCommandQueue = new ATCommandQueue(10);
-        mATCommandManager = new ATCommandManager(mCommandQueue, ipAddress);
-        mKeepAliveRunnable = new RunnableWithLock() {
+    private void postReply(int instanceID, String asyncCallId, JSONObject data) {
+        JSONObject jsonOutput = new JSONObject();
+        try {
+            jsonOutput.put("data", data);
+            jsonOutput.put("asyncCallId", asyncCallId);
+        } catch (JSONException e) {
+            printErrorMessage(e);
+            return;
+        }
+        postMessage(instanceID, jsonOutput.toString());
+    }
+
+    // Reply {|name|: "true"} once the drone confirmed |command|, or an error.
+    private void deliver(final int instanceID, final String asyncCallId, ATCommand command,
+            final String name) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
+            postReply(instanceID, asyncCallId, setOneJSONObject("status", "not connected"));
+            return;
+        }
+
+        manager.deliver(command, new ATCommandDelivery.Listener() {
             @Override
-            public void run() {
-                while (true) {
-                    if (mCommandThread != null) {
-                        mCommandQueue.add(new ATCommand(new ComwdgCommand()));
-                    }
+            public void onConfirmed(ATCommand command) {
+                postReply(instanceID, asyncCallId, setOneJSONObject(name, "true"));
+            }
 
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException e) {
-                        Log.i(TAG, "KeepAliveThread interruptted!!!");
-                        break;
-                    }
-                    paused();
-                }
+            @Override
+            public void onFailed(ATCommand command, String reason) {
+                postReply(instanceID, asyncCallId, setErrorMessage(reason));
             }
-        };
+        });
+    }
 
-        if (mCommandThread != null) {
+    private synchronized JSONObject connect(String ipAddress, int rate, int navdataRate) {
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(ipAddress);
+        } catch (IOException e) {
+            ARDronePilotLog.LOG.e(TAG, e.toString());
+            return setErrorMessage("Cannot connect to " + ipAddress + ": " + e.getMessage());
+        }
+        if (isConnected() && address.equals(mAddress)) {
             return setOneJSONObject("connect", "true");
         }
 
-        if (mKeepAliveThread == null) {
-            mKeepAliveThread = new Thread(mKeepAliveRunnable);
+        // Movement goes through the PCMD slot, the queue only holds one-shot
+        // commands so a small one is enough.
+        ATCommandQueue queue = new ATCommandQueue(COMMAND_QUEUE_SIZE,
+                ATCommandQueue.OverflowPolicy.EVICT_LOWEST, true);
+        ATCommandManager manager = new ATCommandManager(queue, rate);
+        NavdataReceiver navdataReceiver = new NavdataReceiver(manager,
+                new NavdataReceiver.EventListener() {
+                    private final NavdataMessage mNavdataMessage = new NavdataMessage();
+
+                    @Override
+                    public void onNavdata(Navdata navdata) {
+                        broadcastMessage(mNavdataMessage.build(navdata));
+                    }
+                }, navdataRate);
+        try {
+            mLoop.start();
+            // Replaces the connection to another drone, if any.
+            mLoop.connect(address, manager, navdataReceiver);
+        } catch (IOException e) {
+            ARDronePilotLog.LOG.e(TAG, e.toString());
+            mATCommandManager = null;
+            return setErrorMessage("Cannot connect to " + ipAddress + ": " + e.getMessage());
         }
+        mNavdataReceiver = navdataReceiver;
+        mAddress = address;
+        mATCommandManager = manager;
 
-        mCommandThread = new Thread(mATCommandManager);
-        mCommandThread.start();
-        mKeepAliveThread.start();
+        // Leave bootstrap mode so that the drone streams navdata.
+        manager.deliver(new ATCommand(new ConfigCommand("general:navdata_demo", "TRUE")), null);
 
         return setOneJSONObject("connect", "true");
     }
 
-    private JSONObject quit() {
-        if (mCommandThread == null) {
+    private synchronized JSONObject quit() {
+        if (!isConnected()) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new QuitCommand()));
-        mCommandThread.interrupt();
-        mCommandThread = null;
-
-        if (mKeepAliveThread != null) {
-            mKeepAliveThread.interrupt();
-            mKeepAliveThread = null;
-        }
+        mATCommandManager = null;
+        // The loop lands the drone and closes the sockets in the background.
+        mLoop.disconnect();
 
         return setOneJSONObject("quit", "true");
     }
 
     private JSONObject ftrim() {
-        if (mCommandThread == null) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new FtrimCommand()));
+        manager.queue().add(ATCommand.FTRIM);
 
         return setOneJSONObject("ftrim", "true");
     }
 
-    private JSONObject takeoff() {
-        if (mCommandThread == null) {
-            return setOneJSONObject("status", "not connected");
-        }
-
-        mCommandQueue.add(new ATCommand(new TakeoffCommand()));
-
-        return setOneJSONObject("takeoff", "true");
-    }
-
-    private JSONObject landing() {
-        if (mCommandThread == null) {
-            return setOneJSONObject("status", "not connected");
-        }
-
-        mCommandQueue.add(new ATCommand(new LandingCommand()));
-
-        return setOneJSONObject("landing", "true");
-    }
-
     private JSONObject hover() {
-        if (mCommandThread == null) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new HoverCommand()));
+        manager.setPcmd(ATCommand.HOVER);
 
         return setOneJSONObject("hover", "true");
     }
 
     private JSONObject pitch_plus() {
-        if (mCommandThread == null) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new MoveCommand(false, 0.25f, 0f, 0f, 0f)));
+        manager.setPcmd(PITCH_PLUS);
 
         return setOneJSONObject("pitch_plus", "true");
     }
 
     private JSONObject pitch_minus() {
-        if (mCommandThread == null) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new MoveCommand(false, -0.25f, 0f, 0f, 0f)));
+        manager.setPcmd(PITCH_MINUS);
 
         return setOneJSONObject("pitch_minus", "true");
     }
 
     private JSONObject roll_plus() {
-        if (mCommandThread == null) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new MoveCommand(false, 0f, 0.25f, 0f, 0f)));
+        manager.setPcmd(ROLL_PLUS);
 
         return setOneJSONObject("roll_plus", "true");
     }
 
     private JSONObject roll_minus() {
-        if (mCommandThread == null) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new MoveCommand(false, 0f, -0.25f, 0f, 0f)));
+        manager.setPcmd(ROLL_MINUS);
 
         return setOneJSONObject("roll_minus", "true");
     }
 
     private JSONObject yaw_plus() {
-        if (mCommandThread == null) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new MoveCommand(false, 0f, 0f, 0f, 0.25f)));
+        manager.setPcmd(YAW_PLUS);
 
         return setOneJSONObject("yaw_plus", "true");
     }
 
     private JSONObject yaw_minus() {
-        if (mCommandThread == null) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
             return setOneJSONObject("status", "not connected");
         }
 
-        mCommandQueue.add(new ATCommand(new MoveCommand(false, 0f, 0f, 0f, -0.25f)));
+        manager.setPcmd(YAW_MINUS);
 
         return setOneJSONObject("yaw_minus", "true");
     }
 
+    private JSONObject move(float roll, float pitch, float gaz, float yaw) {
+        if (!setAttitude(roll, pitch, gaz, yaw)) {
+            return setOneJSONObject("status", "not connected");
+        }
+
+        return setOneJSONObject("move", "true");
+    }
+
+    // Each axis is in [-1, 1], all zeros means hover.
+    private boolean setAttitude(float roll, float pitch, float gaz, float yaw) {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
+            return false;
+        }
+
+        roll = clampAxis(roll);
+        pitch = clampAxis(pitch);
+        gaz = clampAxis(gaz);
+        yaw = clampAxis(yaw);
+        if (roll == 0f && pitch == 0f && gaz == 0f && yaw == 0f) {
+            manager.setPcmd(ATCommand.HOVER);
+        } else {
+            manager.setPcmd(new ATCommand(new MoveCommand(false, roll, pitch, gaz, yaw)));
+        }
+        return true;
+    }
+
+    private static float clampAxis(float value) {
+        if (Float.isNaN(value)) return 0f;
+        return Math.max(-1f, Math.min(1f, value));
+    }
+
+    // Parse a sync move message without going through JSON.
+    private String handleSyncMove(String message) {
+        float roll = 0f;
+        float pitch = 0f;
+        float gaz = 0f;
+        float yaw = 0f;
+
+        int index = 1;
+        for (int axis = 0; axis < 4; axis++) {
+            if (axis > 0) {
+                if (index >= message.length() || message.charAt(index) != ',') return "false";
+                ++index;
+            }
+
+            boolean negative = index < message.length() && message.charAt(index) == '-';
+            if (negative) ++index;
+            int start = index;
+            int value = 0;
+            while (index < message.length() && index - start < 5) {
+                char c = message.charAt(index);
+                if (c < '0' || c > '9') break;
+                value = value * 10 + (c - '0');
+                ++index;
+            }
+            if (index == start) return "false";
+
+            float v = (negative ? -value : value) / (float) AXIS_SCALE;
+            if (axis == 0) {
+                roll = v;
+            } else if (axis == 1) {
+                pitch = v;
+            } else if (axis == 2) {
+                gaz = v;
+            } else {
+                yaw = v;
+            }
+        }
+        if (index != message.length()) return "false";
+
+        return setAttitude(roll, pitch, gaz, yaw) ? "true" : "false";
+    }
+
+    private JSONObject getStats() {
+        ATCommandManager manager = mATCommandManager;
+        if (manager == null) {
+            return setOneJSONObject("status", "not connected");
+        }
+        ATCommandQueue queue = manager.queue();
+        NavdataReceiver navdataReceiver = mNavdataReceiver;
+
+        // Durations are in microseconds.
+        JSONObject out = new JSONObject();
+        try {
+            out.put("rate", manager.rate());
+            out.put("ticks", manager.ticks());
+            out.put("overruns", manager.overruns());
+            out.put("meanJitter", manager.meanJitter() / 1000);
+            out.put("maxJitter", manager.maxJitter() / 1000);
+            out.put("watchdogs", manager.watchdogs());
+            out.put("sendErrors", mLoop.sendErrors());
+            out.put("queued", queue.size());
+            out.put("replaced", queue.replaced());
+            out.put("dropped", new JSONObject(queue.dropped()));
+
+            JSONObject navdata = new JSONObject();
+            navdata.put("packets", navdataReceiver.packets());
+            navdata.put("invalidPackets", navdataReceiver.invalidPackets());
+            navdata.put("events", navdataReceiver.events());
+            out.put("navdata", navdata);
+        } catch (JSONException e) {
+            printErrorMessage(e);
+        }
+        return out;
+    }
+
     protected JSONObject setOneJSONObject(String key, String value) {
         JSONObject out = new JSONObject();
         try {
             out.put(key, value);
         } catch (JSONException e) {
-            Log.e(TAG, e.toString());
+            ARDronePilotLog.LOG.e(TAG, e.toString());
         }
         return out;
     }
 
     protected void printErrorMessage(JSONException e) {
-        Log.e(TAG, e.toString());
+        ARDronePilotLog.LOG.e(TAG, e.toString());
     }
 
     protected JSONObject setErrorMessage(String error) {
@@ -244,47 +482,30 @@ public class ARDronePilot extends XWalkExtensionClient {
             errorMessage.put("message", error);
             out.put("error", errorMessage);
         } catch (JSONException e) {
-            Log.e(TAG, e.toString());
+            ARDronePilotLog.LOG.e(TAG, e.toString());
         }
         return out;
     }
 
     @Override
     public void onResume() {
-        if (mKeepAliveThread != null) {
-            mKeepAliveRunnable.onResume();
-        }
-
-        if (mCommandThread != null) {
-            mATCommandManager.onResume();
-        }
+        mLoop.resume();
     }
 
     @Override
     public void onPause() {
-        if (mKeepAliveThread != null) {
-            mKeepAliveRunnable.onPause();
-        }
-
-        if (mCommandThread != null) {
-            mATCommandManager.onPause();
-        }
+        mLoop.pause();
     }
 
     @Override
     public void onStop() {
-        if (mKeepAliveThread != null) {
-            mKeepAliveRunnable.onPause();
-        }
-
-        if (mCommandThread != null) {
-            mATCommandManager.onPause();
-        }
+        mLoop.pause();
     }
 
     @Override
     public void onDestroy() {
         quit();
+        mLoop.stop();
     }
 
     @Override
@@ -296,6 +517,10 @@ public class ARDronePilot extends XWalkExtensionClient {
 
     @Override
     public String onSyncMessage(int instanceID, String message) {
+        // The only sync message is the move fast path, sent at gamepad rate.
+        if (!message.isEmpty() && message.charAt(0) == SYNC_MOVE) {
+            return handleSyncMove(message);
+        }
         return null;
     }
 }
@@ -0,0 +1,20 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+import org.xwalk.extensions.common.ExtensionLog;
+
+/*
+ * Logging of the ARDronePilot extension, see ExtensionLog.
+ */
+final class ARDronePilotLog {
+    // Compile-time switch of the trace statements, keep it false in release builds.
+    static final boolean TRACE = false;
+
+    static final ExtensionLog LOG = new ExtensionLog("ARDronePilot");
+
+    private ARDronePilotLog() {
+    }
+}
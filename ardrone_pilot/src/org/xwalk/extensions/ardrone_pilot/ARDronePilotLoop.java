@@ -0,0 +1,359 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * The one thread of the pilot extension.
+ *
+ * It owns the sockets of the connection and a Selector, wakes up for the
+ * next control tick, navdata packets, the navdata timer and the tasks posted
+ * by the extension, so connecting again only opens two sockets. Everything
+ * below runs on the loop thread except the public methods, which post a
+ * task and, for connect(), wait for it. disconnect() and stop() return at
+ * once: the loop goes on delivering Quit until navdata confirms it or the
+ * delivery gives up, so the drone is not left flying without commands, and
+ * closes the sockets and, for stop(), ends the thread after that.
+ */
+public class ARDronePilotLoop implements Runnable {
+    private static final String TAG = "ARDronePilotLoop";
+
+    // How long connect() waits for the loop to run its task, in milliseconds.
+    private static final long CALL_TIMEOUT = 2000;
+
+    private final ConcurrentLinkedQueue<Runnable> mTasks;
+    private Selector mSelector;
+    private Thread mThread;
+    private boolean mStopping;
+    private boolean mPaused;
+
+    // The connection, null when disconnected.
+    private ATCommandManager mManager;
+    private NavdataReceiver mNavdata;
+    private DatagramChannel mCommandChannel;
+    private DatagramChannel mNavdataChannel;
+    private SelectionKey mNavdataKey;
+    private long mDeadline;
+    private long mNextTimer;
+    // Quit is being delivered, the connection closes once it is done.
+    private boolean mQuitting;
+    private boolean mQuitDone;
+
+    private boolean mSendFailing;
+    private volatile long mSendErrors;
+
+    public ARDronePilotLoop() {
+        mTasks = new ConcurrentLinkedQueue<Runnable>();
+    }
+
+    // Start the loop thread if it is not running, or keep it running if it
+    // is stopping.
+    public synchronized void start() throws IOException {
+        if (mThread != null) {
+            // The thread only ends with no task left, see exit().
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mStopping = false;
+                }
+            });
+            return;
+        }
+
+        mSelector = Selector.open();
+        mStopping = false;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    // Disconnect, if connected, and end the loop thread once the connection
+    // is closed. Does not wait for it.
+    public synchronized void stop() {
+        if (mThread == null) return;
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mStopping = true;
+                quit();
+            }
+        });
+    }
+
+    // Open the sockets to the drone at |address| and drive |manager| and
+    // |navdata| with them, closing the previous connection if any.
+    public void connect(final InetAddress address, final ATCommandManager manager,
+            final NavdataReceiver navdata) throws IOException {
+        call(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                closeConnection();
+                open(address, manager, navdata);
+                return null;
+            }
+        });
+    }
+
+    // Land and close the connection, if any. Quit is delivered like the other
+    // REF commands, repeated until navdata shows the drone landed or the
+    // delivery times out, even while paused, and the sockets are closed
+    // after that. Returns at once, calling it again changes nothing.
+    public void disconnect() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                quit();
+            }
+        });
+    }
+
+    // No control ticks while paused, navdata is still read.
+    public void pause() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mPaused = true;
+            }
+        });
+    }
+
+    public void resume() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mPaused) return;
+                mPaused = false;
+                long now = System.nanoTime();
+                if (mManager != null) mDeadline = now + mManager.period();
+                mNextTimer = now;
+            }
+        });
+    }
+
+    // Datagrams which could not be sent, e.g. because the drone is not there.
+    public long sendErrors() { return mSendErrors; }
+
+    private void post(Runnable task) {
+        mTasks.add(task);
+        Selector selector = mSelector;
+        if (selector != null) selector.wakeup();
+    }
+
+    private <T> T call(Callable<T> callable) throws IOException {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        if (Thread.currentThread() == mThread) {
+            task.run();
+        } else {
+            post(task);
+        }
+
+        try {
+            return task.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause().toString());
+        } catch (InterruptedException e) {
+            throw new IOException(e.toString());
+        } catch (TimeoutException e) {
+            throw new IOException("Pilot loop not responding");
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            loop();
+        } finally {
+            // Only reached without exit() when an Error ends the thread.
+            closeConnection();
+            exit(true);
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                long wait = runTimers(System.nanoTime());
+                if (wait < 0) {
+                    mSelector.select();
+                } else if (wait == 0) {
+                    mSelector.selectNow();
+                } else {
+                    // Rounded up, a tick is at most 1ms late rather than
+                    // spinning until its deadline.
+                    mSelector.select((wait + 999999) / 1000000);
+                }
+
+                if (mNavdataKey != null && mSelector.selectedKeys().contains(mNavdataKey)) {
+                    mNavdata.onReadable(mNavdataChannel);
+                }
+                mSelector.selectedKeys().clear();
+            } catch (IOException e) {
+                // Includes the ICMP errors of a drone which is not there.
+                ARDronePilotLog.LOG.w(TAG, e.toString());
+            } catch (RuntimeException e) {
+                // A bug in one tick must not take the loop down with the
+                // connection it drives.
+                ARDronePilotLog.LOG.e(TAG, e.toString());
+            }
+
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ARDronePilotLog.LOG.e(TAG, e.toString());
+                }
+            }
+
+            if (mStopping && mManager == null && exit(false)) return;
+        }
+    }
+
+    // Close the Selector and forget the thread, unless a task came in since
+    // the last ones ran, e.g. from start(). Under the lock of start(), so that
+    // it either sees the thread still running its tasks or none at all.
+    private synchronized boolean exit(boolean force) {
+        if (mThread != Thread.currentThread()) return true;
+        if (!force && !mTasks.isEmpty()) return false;
+
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            ARDronePilotLog.LOG.e(TAG, e.toString());
+        }
+        mThread = null;
+        return true;
+    }
+
+    private void quit() {
+        if (mManager == null || mQuitting) return;
+
+        mQuitting = true;
+        mManager.deliver(ATCommand.QUIT, new ATCommandDelivery.Listener() {
+            @Override
+            public void onConfirmed(ATCommand command) {
+                mQuitDone = true;
+            }
+
+            @Override
+            public void onFailed(ATCommand command, String reason) {
+                ARDronePilotLog.LOG.w(TAG, "Quit: " + reason);
+                mQuitDone = true;
+            }
+        });
+    }
+
+    // Run the tick and the navdata timer if due, return how long to wait for
+    // the next one in nanoseconds, -1 for no timer.
+    private long runTimers(long now) throws IOException {
+        if (mManager == null || (mPaused && !mQuitting)) return -1;
+
+        if (now - mDeadline >= 0) {
+            tick(now);
+            if (mManager == null) return -1;
+            now = System.nanoTime();
+        }
+        if (now - mNextTimer >= 0) {
+            mNextTimer = now + NavdataReceiver.TIMER_PERIOD;
+            mNavdata.onTimer(mNavdataChannel, now);
+        }
+        return Math.max(0, Math.min(mDeadline, mNextTimer) - now);
+    }
+
+    private void tick(long now) {
+        long period = mManager.period();
+        mManager.recordTick(now - mDeadline);
+
+        // After an overrun skip the missed ticks instead of bursting.
+        mDeadline += period;
+        if (mDeadline - now <= 0) mDeadline = now + period;
+
+        boolean quit = mManager.tick(now);
+        send(mManager.datagram());
+        // The listener of the Quit delivery runs within tick().
+        if (quit || mQuitDone) closeConnection();
+    }
+
+    private void send(ByteBuffer datagram) {
+        if (!datagram.hasRemaining()) return;
+
+        try {
+            mCommandChannel.write(datagram);
+            mSendFailing = false;
+        } catch (IOException e) {
+            ++mSendErrors;
+            // Once, not on every tick while the drone is unreachable.
+            if (!mSendFailing) ARDronePilotLog.LOG.w(TAG, e.toString());
+            mSendFailing = true;
+        }
+    }
+
+    private void open(InetAddress address, ATCommandManager manager, NavdataReceiver navdata)
+            throws IOException {
+        DatagramChannel commandChannel = null;
+        DatagramChannel navdataChannel = null;
+        try {
+            commandChannel = DatagramChannel.open();
+            commandChannel.configureBlocking(false);
+            commandChannel.connect(new InetSocketAddress(address, ATCommandManager.CMD_PORT));
+
+            navdataChannel = DatagramChannel.open();
+            navdataChannel.configureBlocking(false);
+            navdataChannel.connect(new InetSocketAddress(address, NavdataReceiver.NAVDATA_PORT));
+            mNavdataKey = navdataChannel.register(mSelector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeChannel(commandChannel);
+            closeChannel(navdataChannel);
+            throw e;
+        }
+
+        mManager = manager;
+        mNavdata = navdata;
+        mCommandChannel = commandChannel;
+        mNavdataChannel = navdataChannel;
+        mSendFailing = false;
+        long now = System.nanoTime();
+        mDeadline = now + manager.period();
+        mNextTimer = now;
+    }
+
+    private void closeConnection() {
+        if (mManager == null) return;
+
+        mManager.close();
+        closeChannel(mCommandChannel);
+        closeChannel(mNavdataChannel);
+        mManager = null;
+        mNavdata = null;
+        mCommandChannel = null;
+        mNavdataChannel = null;
+        mNavdataKey = null;
+        mQuitting = false;
+        mQuitDone = false;
+    }
+
+    private static void closeChannel(DatagramChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ARDronePilotLog.LOG.e(TAG, e.toString());
+        }
+    }
+}
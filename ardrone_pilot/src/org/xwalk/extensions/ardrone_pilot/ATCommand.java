@@ -4,109 +4,80 @@
 
 package org.xwalk.extensions.ardrone_pilot;
 
-import android.util.Log;
-
-import java.io.UnsupportedEncodingException;
-
 public class ATCommand implements Comparable<ATCommand> {
     private static final String TAG = "ATCommand";
 
-    private static final String COMMAND_HEADER = "AT*";
-
-    private BaseCommand mCommand;
-    private String mCommandType;
+    // Commands with constant parameters, shared rather than created per use.
+    public static final ATCommand COMWDG = new ATCommand(new ComwdgCommand());
+    public static final ATCommand FTRIM = new ATCommand(new FtrimCommand());
+    public static final ATCommand HOVER = new ATCommand(new HoverCommand());
+    public static final ATCommand TAKEOFF = new ATCommand(new TakeoffCommand());
+    public static final ATCommand LANDING = new ATCommand(new LandingCommand());
+    public static final ATCommand EMERGENCY = new ATCommand(new EmergencyCommand());
+    public static final ATCommand QUIT = new ATCommand(new QuitCommand());
+    // Acknowledge a CONFIG, clearing the command ACK bit of the drone state.
+    public static final ATCommand ACK_CONTROL =
+            new ATCommand(new CtrlCommand(CtrlCommand.ACK_CONTROL_MODE));
+
+    private final BaseCommand mCommand;
+    // "AT*NAME=" and ",parameters\r" of a constant command, encoded once so
+    // that only the sequence number is left to encode at send time.
+    private final byte[] mTemplateHead;
+    private final byte[] mTemplateTail;
 
     /**
      * Usage:
+     *    - Constant ATCommand: ATCommand.COMWDG, FTRIM, HOVER, TAKEOFF, LANDING,
+     *      EMERGENCY, QUIT or ACK_CONTROL.
      *    - New ATCommand:
      *      1. CONFIG -- new ATCommand(new ConfigCommand(STRING_NAME, STRING_VALUE));
      *      2. ANIM -- new ATCommand(new AnimCommand(INT_ANIMATION, INT_DURATION));
-     *      3. REF_TAKEOFF -- new ATCommand(new TakeoffCommand());
-     *      4. REF_LANDING -- new ATCommand(new LandingCommand());
-     *      6. REF_EMERGENCY -- new ATCommand(new EmergencyCommand());
-     *      7. FTRIM -- new ATCommand(new FtrimCommand());
-     *      8. LED -- new ATCommand(new LedCommand(INT_ANIMATION, FLOAT_FREQUENCY, INT_DURATION));
-     *      9. COMWDG -- new ATCommand(new ComwdgCommand());
-     *      10. PCMD_HOVER -- new ATCommand(new HoverCommand());
-     *      11. PCMD_MOVE -- new ATCommand(new MoveCommand(BOOL_YAW_ENABLE, FLOAT_LEFTRIHTTILT,
-     *                                     FLOAT_FRONTBACKTILT, FLOAT_VERTICALSPEED, FLOAT_ANGULARSPEED));
-     *      12. QUIT -- new ATCommand(new QuitCommand());
+     *      3. LED -- new ATCommand(new LedCommand(INT_ANIMATION, FLOAT_FREQUENCY, INT_DURATION));
+     *      4. PCMD_MOVE -- new ATCommand(new MoveCommand(BOOL_YAW_ENABLE, FLOAT_LEFTRIHTTILT,
+     *                                    FLOAT_FRONTBACKTILT, FLOAT_VERTICALSPEED, FLOAT_ANGULARSPEED));
      *
      */
     public ATCommand(BaseCommand baseCommand) {
-        if (baseCommand instanceof ConfigCommand) {
-            mCommandType = "Config";
-        } else if (baseCommand instanceof AnimCommand) {
-            mCommandType = "Anim";
-        } else if (baseCommand instanceof TakeoffCommand) {
-            mCommandType = "Takeoff";
-        } else if (baseCommand instanceof LandingCommand) {
-            mCommandType = "Landing";
-        } else if (baseCommand instanceof EmergencyCommand) {
-            mCommandType = "Emergency";
-        } else if (baseCommand instanceof FtrimCommand) {
-            mCommandType = "Ftrim";
-        } else if (baseCommand instanceof LedCommand) {
-            mCommandType = "Led";
-        } else if (baseCommand instanceof ComwdgCommand) {
-            mCommandType = "Comwdg";
-        } else if (baseCommand instanceof HoverCommand) {
-            mCommandType = "Hover";
-        } else if (baseCommand instanceof MoveCommand) {
-            mCommandType = "Move";
-        } else if (baseCommand instanceof QuitCommand) {
-            mCommandType = "Quit";
+        mCommand = baseCommand;
+        if (baseCommand.isConstant()) {
+            ATCommandEncoder encoder = new ATCommandEncoder();
+            mTemplateHead = encoder.encodeHead(baseCommand);
+            mTemplateTail = encoder.encodeTail(baseCommand);
         } else {
-            throw new IllegalArgumentException("Unsupported Type: " + baseCommand.getClass().getName());
+            mTemplateHead = null;
+            mTemplateTail = null;
         }
-
-        mCommand = baseCommand;
     }
 
     public String getCommandName() {
         return mCommand.getCommandName();
     }
 
-    public String getCommandType() {
-        return mCommandType;
+    public ATCommandType getCommandType() {
+        return mCommand.getType();
     }
 
     public int getPriority() {
         return mCommand.getPriority();
     }
-    
-    private Object[] getParameters() {
-        return mCommand.getParameters();
-    }
-
-    private String encodeParameter(Object o) {
-        if(o instanceof Integer) {
-            return o.toString();
-        }
 
-        if(o instanceof Float) {
-            return Integer.toString(Float.floatToIntBits((Float) o));
-        }
-
-        if(o instanceof String) {
-            return "\"" + o + "\"";
-        }
-
-        throw new IllegalArgumentException("Unsupported Type: " + o.getClass().getName() + " " + o);
+    // Whether this command makes |other| pointless if |other| has not been sent yet.
+    public boolean isDuplicateOf(ATCommand other) {
+        return mCommand.isDuplicateOf(other.mCommand);
     }
-
-    private String buildParametersString() {
-        StringBuffer stringBuffer = new StringBuffer();
-
-        for(Object o : getParameters()) {
-            stringBuffer.append(',').append(encodeParameter(o));
-        }
-
-        return stringBuffer.toString();
+    
+    void encodeParameters(ATCommandEncoder encoder) {
+        mCommand.encodeParameters(encoder);
     }
 
+    byte[] templateHead() { return mTemplateHead; }
+    byte[] templateTail() { return mTemplateTail; }
+
+    // Mostly for logging, ATCommandManager encodes into its datagram directly.
     public String buildATCommandString(int sequence) {
-        return COMMAND_HEADER + getCommandName() + "=" + sequence + buildParametersString() + "\r";
+        ATCommandEncoder encoder = new ATCommandEncoder();
+        encoder.append(this, sequence);
+        return encoder.toString();
     }
 
     public boolean equals(Object o) {
@@ -118,62 +89,12 @@ public class ATCommand implements Comparable<ATCommand> {
         return atCommand.buildATCommandString(0).equals(buildATCommandString(0));
     }
 
-    public byte[] buildPacketBytes(int sequence) {
-        try {
-            return buildATCommandString(sequence).getBytes("ASCII");
-        } catch (UnsupportedEncodingException e) {
-            return null;
-        }
-    }
-
+    // Commands with a higher priority come first, ATCommandQueue keeps the
+    // commands of a same priority in order.
     @Override
     public int compareTo(ATCommand o) {
-        if (o instanceof ATCommand) {
-           return getPriority() > o.getPriority() ? 1 : -1;
-        }
-
-        return 0;
-    }
-}
-
-class BaseCommand {
-    static final int PRIORITY_LOW = 0;
-    static final int PRIORITY_MEDIUM = 50;
-    static final int PRIORITY_HIGH = 80;
-    static final int PRIORITY_VERY_HIGH = 100;
-
-    String mCommandName;
-
-    BaseCommand(String commandName) {
-        mCommandName = commandName;
-    }
-
-    String getCommandName() {
-        return mCommandName;
-    }
-
-    int getPriority() {
-        return PRIORITY_LOW;
-    }
-
-    Object[] getParameters() {
-        return new Object[] {};
-    }
-}
-
-class ConfigCommand extends BaseCommand {
-    String mName;
-    String mValue;
-
-    ConfigCommand(String name, String value) {
-        super("CONFIG");
-        mName = name;
-        mValue = value;
-    }
-
-    @Override
-    Object[] getParameters() {
-        return new Object[] {mName, mValue};
+        if (getPriority() == o.getPriority()) return 0;
+        return getPriority() > o.getPriority() ? -1 : 1;
     }
 }
 
@@ -182,27 +103,33 @@ class AnimCommand extends BaseCommand {
     int mDuration;
 
     AnimCommand(int animation, int duration) {
-        super("ANIM");
+        super("ANIM", ATCommandType.ANIM);
         mAnimation = animation;
         mDuration = duration;
     }
 
     @Override
-    protected Object[] getParameters() {
-        return new Object[] {mAnimation, mDuration};
+    void encodeParameters(ATCommandEncoder encoder) {
+        encoder.appendInt(mAnimation);
+        encoder.appendInt(mDuration);
     }
 }
 
 class RefCommand extends BaseCommand {
     int mValue = (1 << 18) | (1 << 20) | (1 << 22) | (1 << 24) | (1 << 28);
 
-    RefCommand() {
-        super("REF");
+    RefCommand(ATCommandType type) {
+        super("REF", type);
     }
 
     @Override
-    protected Object[] getParameters() {
-        return new Object[] {mValue};
+    boolean isConstant() {
+        return true;
+    }
+
+    @Override
+    void encodeParameters(ATCommandEncoder encoder) {
+        encoder.appendInt(mValue);
     }
 
     @Override
@@ -213,17 +140,20 @@ class RefCommand extends BaseCommand {
 
 class TakeoffCommand extends RefCommand {
     TakeoffCommand() {
+        super(ATCommandType.TAKEOFF);
         mValue |= (1 << 9);
     }
 }
 
 class LandingCommand extends RefCommand {
     LandingCommand() {
+        super(ATCommandType.LANDING);
     }
 }
 
 class EmergencyCommand extends RefCommand {
     EmergencyCommand() {
+        super(ATCommandType.EMERGENCY);
         mValue |= (1 << 8);
     }
 
@@ -233,8 +163,10 @@ class EmergencyCommand extends RefCommand {
     }
 }
 
-class QuitCommand extends LandingCommand {
+// Lands, and closes the connection once sent.
+class QuitCommand extends RefCommand {
     QuitCommand() {
+        super(ATCommandType.QUIT);
     }
 
     @Override
@@ -245,7 +177,34 @@ class QuitCommand extends LandingCommand {
 
 class FtrimCommand extends BaseCommand {
     FtrimCommand() {
-        super("FTRIM");
+        super("FTRIM", ATCommandType.FTRIM);
+    }
+
+    @Override
+    boolean isConstant() {
+        return true;
+    }
+}
+
+class CtrlCommand extends BaseCommand {
+    static final int ACK_CONTROL_MODE = 5;
+
+    int mMode;
+
+    CtrlCommand(int mode) {
+        super("CTRL", ATCommandType.CTRL);
+        mMode = mode;
+    }
+
+    @Override
+    void encodeParameters(ATCommandEncoder encoder) {
+        encoder.appendInt(mMode);
+        encoder.appendInt(0);
+    }
+
+    @Override
+    boolean isConstant() {
+        return true;
     }
 }
 
@@ -255,73 +214,43 @@ class LedCommand extends BaseCommand {
     int mDuration;
 
     LedCommand(int animation, float frequence, int duration) {
-        super("LED");
+        super("LED", ATCommandType.LED);
         mAnimation = animation;
         mFrequence = frequence;
         mDuration = duration;
     }
 
     @Override
-    protected Object[] getParameters() {
-        return new Object[] {mAnimation, mFrequence, mDuration};
+    void encodeParameters(ATCommandEncoder encoder) {
+        encoder.appendInt(mAnimation);
+        encoder.appendFloat(mFrequence);
+        encoder.appendInt(mDuration);
     }
 }
 
 class ComwdgCommand extends BaseCommand {
     ComwdgCommand() {
-        super("COMWDG");
+        super("COMWDG", ATCommandType.COMWDG);
     }
 
     @Override
-    int getPriority() {
-        return PRIORITY_VERY_HIGH;
-    }
-}
-
-class PcmdCommand extends BaseCommand {
-    boolean mCombinedYawEnable;
-    boolean mHover;
-
-    float mAngularSpeed;
-    float mFrontBackTilt;
-    float mLeftRrightTilt;
-    float mVerticalSpeed;
-
-    PcmdCommand(boolean hover) {
-        super("PCMD");
-        mHover = hover;
+    boolean isConstant() {
+        return true;
     }
 
     @Override
-    protected Object[] getParameters() {
-        if (mHover) {
-            return new Object[] { 0, 0f, 0f, 0f, 0f };
-        }
-
-        int mode = 1;
-        if (mCombinedYawEnable) {
-            mode |= (1 << 1);
-        }
-
-        return new Object[] {mode, mLeftRrightTilt, mFrontBackTilt,
-                mVerticalSpeed, mAngularSpeed};
+    int getPriority() {
+        return PRIORITY_VERY_HIGH;
     }
 }
 
 class HoverCommand extends PcmdCommand {
     HoverCommand() {
-        super(true);
+        super(true, ATCommandType.HOVER);
     }
-}
 
-class MoveCommand extends PcmdCommand {
-    MoveCommand(boolean combinedYawEnable, float leftRightTilt, float frontBackTilt,
-            float verticalSpeed, float angularSpeed) {
-        super(false);
-        mCombinedYawEnable = combinedYawEnable;
-        mLeftRrightTilt = leftRightTilt;
-        mFrontBackTilt = frontBackTilt;
-        mVerticalSpeed = verticalSpeed;
-        mAngularSpeed = angularSpeed;
+    @Override
+    boolean isConstant() {
+        return true;
     }
 }
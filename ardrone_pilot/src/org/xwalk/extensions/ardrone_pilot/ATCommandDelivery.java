@@ -0,0 +1,193 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+/*
+ * Reliable delivery of a state changing command over UDP, driven by the
+ * control ticks of ATCommandManager against the drone state from navdata.
+ *
+ * A REF command (takeoff, landing, emergency) is repeated on every tick until
+ * the drone state shows its effect. Emergency toggles the state: it goes out
+ * right away, but is only repeated once navdata tells the state before it.
+ * A CONFIG goes through the ACK handshake: the command ACK bit is cleared
+ * with CTRL if needed, the CONFIG is sent until the drone sets the bit, then
+ * CTRL is sent until the drone clears it.
+ * Either way the delivery fails once its deadline has passed.
+ */
+public class ATCommandDelivery {
+    public static final long REF_TIMEOUT = 5000;
+    public static final long CONFIG_TIMEOUT = 3000;
+
+    // The drone applies every CONFIG it gets, so unlike REF and CTRL it is not
+    // repeated on every tick.
+    private static final long RESEND_INTERVAL = 200 * 1000000L;
+
+    private static final int PHASE_START = 0;
+    private static final int PHASE_CLEAR_ACK = 1;
+    private static final int PHASE_CONFIG = 2;
+    private static final int PHASE_ACK = 3;
+
+    public interface Listener {
+        void onConfirmed(ATCommand command);
+        void onFailed(ATCommand command, String reason);
+    }
+
+    private final ATCommand mCommand;
+    private final long mTimeout;
+    private final long mDeadline;
+    private final Listener mListener;
+
+    private boolean mDone;
+    private boolean mNotified;
+    private String mFailure;
+
+    private int mPhase;
+    private boolean mSentConfig;
+    private long mLastSent;
+    // State when the delivery started, for commands toggling a state bit.
+    private boolean mHasInitialState;
+    private int mInitialState;
+    // A toggle went out before any navdata.
+    private boolean mSentBlind;
+
+    public ATCommandDelivery(ATCommand command, Listener listener) {
+        mCommand = command;
+        mTimeout = isConfig() ? CONFIG_TIMEOUT : REF_TIMEOUT;
+        mDeadline = System.nanoTime() + mTimeout * 1000000L;
+        mListener = listener;
+        mDone = false;
+        mNotified = false;
+        mPhase = PHASE_START;
+        mSentConfig = false;
+        mLastSent = 0;
+        mHasInitialState = false;
+        mSentBlind = false;
+    }
+
+    public ATCommand command() { return mCommand; }
+
+    public boolean isConfig() {
+        return mCommand.getCommandType() == ATCommandType.CONFIG;
+    }
+
+    // Return the command to send on this tick, or null for none. |state| is
+    // only meaningful if |hasState|, i.e. navdata was received.
+    public synchronized ATCommand next(long now, boolean hasState, int state) {
+        if (mDone) return null;
+        return isConfig() ? nextConfig(now, hasState, state) : nextRef(now, hasState, state);
+    }
+
+    private ATCommand nextRef(long now, boolean hasState, int state) {
+        if (hasState) {
+            if (!mHasInitialState) {
+                mHasInitialState = true;
+                mInitialState = state;
+                // After a blind Emergency the state before it is unknown. An
+                // emergency state is taken as the cut-off done, otherwise the
+                // repeats go on until it shows.
+                if (mSentBlind && (state & Navdata.STATE_EMERGENCY) != 0) {
+                    mDone = true;
+                    return ATCommand.LANDING;
+                }
+            }
+            if (isConfirmedBy(state)) {
+                mDone = true;
+                // The emergency bit toggles the state, clear it right away.
+                return isToggle() ? ATCommand.LANDING : null;
+            }
+        }
+
+        if (now - mDeadline >= 0) {
+            fail("Not confirmed by the drone within " + mTimeout + "ms");
+            return null;
+        }
+        // Without the state before it, repeats of a toggle could not be told
+        // apart and might flip the drone back, so only the first one goes out:
+        // a motor cut-off must not wait for navdata.
+        if (isToggle() && !mHasInitialState) {
+            if (mSentBlind) return null;
+            mSentBlind = true;
+        }
+        return mCommand;
+    }
+
+    private boolean isToggle() {
+        return mCommand.getCommandType() == ATCommandType.EMERGENCY;
+    }
+
+    private boolean isConfirmedBy(int state) {
+        switch (mCommand.getCommandType()) {
+            case TAKEOFF:
+                return (state & Navdata.STATE_FLYING) != 0;
+            case LANDING:
+            case QUIT:
+                return (state & Navdata.STATE_FLYING) == 0;
+            case EMERGENCY:
+                return ((state ^ mInitialState) & Navdata.STATE_EMERGENCY) != 0;
+            default:
+                return true;
+        }
+    }
+
+    private ATCommand nextConfig(long now, boolean hasState, int state) {
+        boolean ack = (state & Navdata.STATE_COMMAND_ACK) != 0;
+        if (hasState) {
+            if (mPhase == PHASE_START) {
+                mPhase = ack ? PHASE_CLEAR_ACK : PHASE_CONFIG;
+            }
+            if (mPhase == PHASE_CLEAR_ACK && !ack) {
+                mPhase = PHASE_CONFIG;
+            } else if (mPhase == PHASE_CONFIG && ack && mSentConfig) {
+                mPhase = PHASE_ACK;
+            } else if (mPhase == PHASE_ACK && !ack) {
+                mDone = true;
+                return null;
+            }
+        }
+
+        if (now - mDeadline >= 0) {
+            fail("Not acknowledged by the drone within " + mTimeout + "ms");
+            return null;
+        }
+
+        if (mPhase == PHASE_CLEAR_ACK || mPhase == PHASE_ACK) return ATCommand.ACK_CONTROL;
+
+        // Without navdata the CONFIG is still sent, but cannot be confirmed.
+        if (mLastSent != 0 && now - mLastSent < RESEND_INTERVAL) return null;
+        mLastSent = now;
+        mSentConfig = true;
+        return mCommand;
+    }
+
+    // Return false if the delivery was already done.
+    public synchronized boolean fail(String reason) {
+        if (mDone) return false;
+        mDone = true;
+        mFailure = reason;
+        return true;
+    }
+
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    // Tell the listener how the delivery ended, once. Called without holding
+    // any lock of the manager.
+    public void notifyListener() {
+        String failure;
+        synchronized (this) {
+            if (!mDone || mNotified) return;
+            mNotified = true;
+            failure = mFailure;
+        }
+
+        if (mListener == null) return;
+        if (failure == null) {
+            mListener.onConfirmed(mCommand);
+        } else {
+            mListener.onFailed(mCommand, failure);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+/*
+ * Encode AT commands as "AT*NAME=sequence,arg1,arg2...\r" straight into a
+ * reusable datagram buffer.
+ *
+ * Integers are written in decimal digit by digit and floats as the decimal
+ * value of their IEEE-754 bits, as the drone expects, so encoding a command
+ * allocates nothing.
+ */
+public class ATCommandEncoder {
+    // The drone ignores datagrams bigger than this.
+    public static final int MAX_PACKET_SIZE = 1024;
+
+    private static final byte[] COMMAND_HEADER = { 'A', 'T', '*' };
+
+    private final byte[] mBuffer;
+    private int mLength;
+    // Set when an append did not fit, the command being encoded is rolled back.
+    private boolean mOverflow;
+
+    public ATCommandEncoder() {
+        mBuffer = new byte[MAX_PACKET_SIZE];
+        mLength = 0;
+        mOverflow = false;
+    }
+
+    public void reset() {
+        mLength = 0;
+    }
+
+    public byte[] buffer() { return mBuffer; }
+    public int length() { return mLength; }
+
+    // Append |command| with |sequence|. Return false, leaving the buffer as it
+    // was, if the command does not fit.
+    public boolean append(ATCommand command, int sequence) {
+        int start = mLength;
+        mOverflow = false;
+
+        if (command.templateHead() != null) {
+            // Only the sequence number changes from one send to the next.
+            appendBytes(command.templateHead());
+            appendDecimal(sequence);
+            appendBytes(command.templateTail());
+        } else {
+            appendBytes(COMMAND_HEADER);
+            appendAscii(command.getCommandName());
+            appendByte('=');
+            appendDecimal(sequence);
+            command.encodeParameters(this);
+            appendByte('\r');
+        }
+
+        if (mOverflow) {
+            mLength = start;
+            return false;
+        }
+        return true;
+    }
+
+    // "AT*NAME=" of |command|, for a template.
+    byte[] encodeHead(BaseCommand command) {
+        reset();
+        appendBytes(COMMAND_HEADER);
+        appendAscii(command.getCommandName());
+        appendByte('=');
+        return copyOfBuffer();
+    }
+
+    // ",parameters\r" of |command|, for a template.
+    byte[] encodeTail(BaseCommand command) {
+        reset();
+        command.encodeParameters(this);
+        appendByte('\r');
+        return copyOfBuffer();
+    }
+
+    private byte[] copyOfBuffer() {
+        byte[] bytes = new byte[mLength];
+        System.arraycopy(mBuffer, 0, bytes, 0, mLength);
+        return bytes;
+    }
+
+    public void appendInt(int value) {
+        appendByte(',');
+        appendDecimal(value);
+    }
+
+    public void appendFloat(float value) {
+        appendByte(',');
+        appendDecimal(Float.floatToIntBits(value));
+    }
+
+    public void appendString(String value) {
+        appendByte(',');
+        appendByte('"');
+        appendAscii(value);
+        appendByte('"');
+    }
+
+    private void appendByte(int b) {
+        if (mLength == mBuffer.length) {
+            mOverflow = true;
+            return;
+        }
+        mBuffer[mLength++] = (byte) b;
+    }
+
+    private void appendBytes(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) appendByte(bytes[i]);
+    }
+
+    private void appendAscii(String value) {
+        for (int i = 0; i < value.length(); i++) appendByte(value.charAt(i));
+    }
+
+    private void appendDecimal(int value) {
+        // A long so that -Integer.MIN_VALUE does not overflow.
+        long v = value;
+        if (v < 0) {
+            appendByte('-');
+            v = -v;
+        }
+
+        long divisor = 1;
+        while (divisor * 10 <= v) divisor *= 10;
+        for (; divisor > 0; divisor /= 10) {
+            appendByte('0' + (int) (v / divisor % 10));
+        }
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[mLength];
+        for (int i = 0; i < mLength; i++) chars[i] = (char) mBuffer[i];
+        return new String(chars);
+    }
+}
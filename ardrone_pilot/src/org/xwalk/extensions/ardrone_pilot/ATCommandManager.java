@@ -4,99 +4,274 @@
 
 package org.xwalk.extensions.ardrone_pilot;
 
-import android.util.Log;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicReference;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
-
-public class ATCommandManager extends RunnableWithLock {
+/*
+ * The AT command side of a connection: encodes what each control tick sends,
+ * ARDronePilotLoop owns the socket and calls tick() at the control rate.
+ * The methods used by the extension, setPcmd() and deliver(), and the queue
+ * may be called from any thread.
+ */
+public class ATCommandManager implements NavdataReceiver.Listener {
     public static final String TAG = "ATCommandManager";
 
     public static final int CMD_PORT = 5556;
 
-    private ATCommandQueue mCommandQueue;
-    private DatagramSocket mDataSocket;
-    private InetAddress mInetAddress;
+    // Control ticks per second.
+    public static final int DEFAULT_RATE = 30;
+    public static final int MAX_RATE = 200;
+
+    // The drone lands when it does not hear from us for 2s, a COMWDG is sent
+    // when nothing else was for this long.
+    private static final long WATCHDOG_IDLE = 250 * 1000000L;
+    // Set in the drone state when its watchdog fired.
+    private static final int STATE_WATCHDOG = 1 << 30;
+
+    private final ATCommandQueue mCommandQueue;
     private int mSequence;
+    private long mLastSent;
+
+    // Every command is encoded into the buffer of this one datagram.
+    private final ATCommandEncoder mEncoder;
+    private final ByteBuffer mDatagram;
+    // Taken from the queue but left out of the last datagram, which was full.
+    private ATCommand mPendingCommand;
+    // The latest PCMD, sent on every tick. Movement commands replace each
+    // other here instead of queuing up behind the one-shot commands.
+    private final AtomicReference<ATCommand> mPcmd;
 
-    public ATCommandManager(ATCommandQueue queue, String remoteAddress) {
+    // REF deliveries replace each other, the latest one wins. CONFIG
+    // deliveries are handshaked one at a time, in order.
+    private final Object mDeliveryLock;
+    private ATCommandDelivery mRefDelivery;
+    private final LinkedList<ATCommandDelivery> mConfigDeliveries;
+    private volatile boolean mHasDroneState;
+    private volatile int mDroneState;
+
+    private final int mRate;
+    private long mTicks;
+    private long mOverruns;
+    private long mTotalJitter;
+    private long mMaxJitter;
+    private long mWatchdogs;
+
+    public ATCommandManager(ATCommandQueue queue, int rate) {
         mCommandQueue = queue;
+        mRate = Math.max(1, Math.min(rate, MAX_RATE));
         mSequence = 1;
-        try {
-            mDataSocket = new DatagramSocket();
-            mInetAddress = InetAddress.getByName(remoteAddress);
-        } catch (SocketException e) {
-            Log.i(TAG, e.toString());
-        } catch (UnknownHostException e) {
-            Log.i(TAG, e.toString());
-        }
+        mLastSent = System.nanoTime();
+        mEncoder = new ATCommandEncoder();
+        mDatagram = ByteBuffer.wrap(mEncoder.buffer());
+        mPendingCommand = null;
+        mPcmd = new AtomicReference<ATCommand>();
+        mDeliveryLock = new Object();
+        mRefDelivery = null;
+        mConfigDeliveries = new LinkedList<ATCommandDelivery>();
+        mHasDroneState = false;
+    }
+
+    public ATCommandQueue queue() { return mCommandQueue; }
+
+    // Nanoseconds between two ticks.
+    public long period() { return 1000000000L / mRate; }
+
+    synchronized void recordTick(long lateness) {
+        long period = period();
+        ++mTicks;
+        mTotalJitter += lateness;
+        if (lateness > mMaxJitter) mMaxJitter = lateness;
+        if (lateness >= period) mOverruns += lateness / period;
     }
 
     @Override
-    public void run() {
-        while (true) {
-            try {
-                ATCommand atCommand = mCommandQueue.take();
-                byte[] packetData = atCommand.buildPacketBytes(mSequence);
-                DatagramPacket datagramPacket = new DatagramPacket(packetData, packetData.length,
-                        mInetAddress, CMD_PORT);
-                mDataSocket.send(datagramPacket);
-
-                Log.i(TAG, atCommand.buildATCommandString(mSequence));
-                mSequence += 1;
-                if (atCommand.getCommandType().equals("Quit")) {
-                    break;
-                }
+    public void onNavdataState(int state) {
+        mDroneState = state;
+        mHasDroneState = true;
+    }
 
-                Thread.sleep(30);
-            } catch (InterruptedException e) {
-                break;
-            } catch (IOException e) {
-                break;
+    // Send |command| until the drone state confirms it, |listener| is told
+    // the outcome on the loop thread. A REF command supersedes the REF
+    // command still being delivered.
+    public void deliver(ATCommand command, ATCommandDelivery.Listener listener) {
+        ATCommandDelivery delivery = new ATCommandDelivery(command, listener);
+        ATCommandDelivery superseded = null;
+        synchronized (mDeliveryLock) {
+            if (delivery.isConfig()) {
+                mConfigDeliveries.add(delivery);
+            } else {
+                superseded = mRefDelivery;
+                mRefDelivery = delivery;
             }
-            paused();
+        }
+
+        if (superseded != null
+                && superseded.fail("Superseded by " + command.getCommandType().getName())) {
+            superseded.notifyListener();
         }
     }
-}
 
-class RunnableWithLock implements Runnable {
-    private boolean mIsPaused;
-    private Object mPauseLock;
+    private void failDeliveries(String reason) {
+        LinkedList<ATCommandDelivery> deliveries;
+        synchronized (mDeliveryLock) {
+            deliveries = new LinkedList<ATCommandDelivery>(mConfigDeliveries);
+            if (mRefDelivery != null) deliveries.add(mRefDelivery);
+            mConfigDeliveries.clear();
+            mRefDelivery = null;
+        }
 
-    public RunnableWithLock() {
-        mIsPaused = false;
-        mPauseLock = new Object();
+        for (ATCommandDelivery delivery : deliveries) {
+            if (delivery.fail(reason)) delivery.notifyListener();
+        }
     }
 
-    @Override
-    public void run() {
+    // Append the commands of the deliveries in progress, and retire the ones
+    // which are done.
+    private void appendDeliveries() {
+        ATCommandDelivery ref;
+        ATCommandDelivery config;
+        synchronized (mDeliveryLock) {
+            ref = mRefDelivery;
+            config = mConfigDeliveries.peek();
+        }
+
+        long now = System.nanoTime();
+        boolean hasState = mHasDroneState;
+        int state = mDroneState;
+        if (ref != null) {
+            appendDelivery(ref.next(now, hasState, state));
+            if (ref.isDone()) {
+                synchronized (mDeliveryLock) {
+                    if (mRefDelivery == ref) mRefDelivery = null;
+                }
+                ref.notifyListener();
+            }
+        }
+        if (config != null) {
+            appendDelivery(config.next(now, hasState, state));
+            if (config.isDone()) {
+                synchronized (mDeliveryLock) {
+                    mConfigDeliveries.remove(config);
+                }
+                config.notifyListener();
+            }
+        }
     }
 
-    public void onPause() {
-        synchronized (mPauseLock) {
-            mIsPaused = true;
+    private void appendDelivery(ATCommand atCommand) {
+        // If it does not fit it goes on the next tick, deliveries repeat anyway.
+        if (atCommand != null && mEncoder.append(atCommand, mSequence)) {
+            mSequence += 1;
+            clearPcmdAfter(atCommand);
         }
     }
 
-    public void onResume() {
-        synchronized (mPauseLock) {
-            mIsPaused = false;
-            mPauseLock.notifyAll();
+    // Landing, emergency and quit end the flight, the next takeoff must not
+    // resume the last attitude on its own. Deliveries repeat the command
+    // until the drone confirms it, so a PCMD set meanwhile is cleared too.
+    private void clearPcmdAfter(ATCommand atCommand) {
+        switch (atCommand.getCommandType()) {
+            case LANDING:
+            case EMERGENCY:
+            case QUIT:
+                mPcmd.set(null);
+                break;
+            default:
+                break;
         }
     }
 
-    protected void paused() {
-        synchronized (mPauseLock) {
-            while (mIsPaused) {
-                try {
-                    mPauseLock.wait();
-                } catch (InterruptedException e) {
+    // Set the attitude sent from the next tick on, may be called from any thread.
+    public void setPcmd(ATCommand pcmd) {
+        mPcmd.set(pcmd);
+    }
+
+    // Encode the commands being delivered, every command ready in the queue,
+    // highest priority first, then the latest PCMD, into one datagram with
+    // consecutive sequence numbers. A COMWDG goes alone when the link was
+    // idle, and with the rest while the drone reports that its watchdog
+    // fired, which a PCMD alone does not reset. Return whether a Quit command
+    // was encoded, datagram() holds the result.
+    boolean tick(long now) {
+        mEncoder.reset();
+        appendDeliveries();
+
+        boolean quit = false;
+        ATCommand atCommand = mPendingCommand;
+        mPendingCommand = null;
+        if (atCommand == null) atCommand = mCommandQueue.poll();
+        while (atCommand != null) {
+            if (atCommand.getCommandType() == ATCommandType.MOVE
+                    || atCommand.getCommandType() == ATCommandType.HOVER) {
+                mPcmd.set(atCommand);
+                atCommand = mCommandQueue.poll();
+                continue;
+            }
+
+            if (!mEncoder.append(atCommand, mSequence)) {
+                if (mEncoder.length() == 0) {
+                    ARDronePilotLog.LOG.e(TAG, "Command too long: " + atCommand.getCommandName());
+                } else {
+                    // Goes first in the next datagram.
+                    mPendingCommand = atCommand;
                 }
+                break;
+            }
+
+            mSequence += 1;
+            clearPcmdAfter(atCommand);
+            if (atCommand.getCommandType() == ATCommandType.QUIT) {
+                quit = true;
+                break;
             }
+            atCommand = mCommandQueue.poll();
         }
+
+        ATCommand pcmd = mPcmd.get();
+        if (!quit && pcmd != null && mEncoder.append(pcmd, mSequence)) {
+            mSequence += 1;
+        }
+
+        boolean watchdogFired = mHasDroneState && (mDroneState & STATE_WATCHDOG) != 0;
+        boolean idle = mEncoder.length() == 0 && now - mLastSent >= WATCHDOG_IDLE;
+        if ((idle || watchdogFired) && mEncoder.append(ATCommand.COMWDG, mSequence)) {
+            mSequence += 1;
+            synchronized (this) {
+                ++mWatchdogs;
+            }
+        }
+
+        if (mEncoder.length() > 0) {
+            mLastSent = now;
+            if (ARDronePilotLog.TRACE && ARDronePilotLog.LOG.isTraceEnabled()) {
+                ARDronePilotLog.LOG.trace(TAG, mEncoder.toString());
+            }
+        }
+        mDatagram.limit(mEncoder.length());
+        mDatagram.position(0);
+        return quit;
+    }
+
+    // What the last tick encoded, empty if there is nothing to send.
+    ByteBuffer datagram() {
+        return mDatagram;
     }
+
+    // Fail the deliveries in progress, once the connection is closed. A new
+    // connection gets a new manager, without any PCMD either.
+    void close() {
+        mPcmd.set(null);
+        failDeliveries("Disconnected");
+    }
+
+    public int rate() { return mRate; }
+    public synchronized long ticks() { return mTicks; }
+    // Ticks missed because a tick came later than a whole period.
+    public synchronized long overruns() { return mOverruns; }
+    // How late the ticks fire, in nanoseconds.
+    public synchronized long meanJitter() { return mTicks == 0 ? 0 : mTotalJitter / mTicks; }
+    public synchronized long maxJitter() { return mMaxJitter; }
+    // COMWDG sent because the link was idle or the drone watchdog fired.
+    public synchronized long watchdogs() { return mWatchdogs; }
 }
@@ -4,36 +4,183 @@
 
 package org.xwalk.extensions.ardrone_pilot;
 
-import android.util.Log;
-
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.HashMap;
+import java.util.Map;
 
+/*
+ * A bounded priority queue of AT commands, FIFO within a priority.
+ *
+ * Admission is atomic: when the queue is full the overflow policy decides
+ * whether the new command or a queued one is dropped. Critical commands
+ * (PRIORITY_HIGH and up, e.g. EMERGENCY and Quit) are never dropped, they
+ * evict a queued command or, if every queued command is critical too, go
+ * over the bound. Dropped commands are counted per type.
+ */
 public class ATCommandQueue {
-    private static final String TAG = "ATCommandQueue"; 
+    private static final String TAG = "ATCommandQueue";
+
+    public enum OverflowPolicy {
+        // Drop the new command.
+        REJECT_NEW,
+        // Drop the oldest command of the lowest priority, if it is not higher
+        // than the new one.
+        EVICT_LOWEST,
+        // Drop the oldest command.
+        EVICT_OLDEST
+    }
+
+    private final int mMaxSize;
+    private final OverflowPolicy mPolicy;
+    // Whether a command replaces a queued one doing the same thing, see
+    // ATCommand.isDuplicateOf(), in place rather than queuing behind it.
+    private final boolean mReplaceDuplicates;
+
+    // Sorted by priority, highest first, then by admission order. Commands
+    // may be shared constants, so their admission order is kept aside.
+    private ATCommand[] mCommands;
+    private long[] mAdmissions;
+    private int mSize;
+    private long mNextAdmission;
 
-    private int mMaxSize;
-    private PriorityBlockingQueue<ATCommand> mQueue;
+    // Indexed by ATCommandType ordinal.
+    private final long[] mDropped;
+    private long mReplaced;
 
     public ATCommandQueue(int maxSize) {
-        mMaxSize = maxSize;
-        mQueue = new PriorityBlockingQueue<ATCommand>(maxSize);
+        this(maxSize, OverflowPolicy.EVICT_LOWEST, true);
     }
 
-    public void add(ATCommand atCommand) {
-        // FIXME(legend): ignore the commands more than max size.
-        if (mQueue.size() < mMaxSize) {
-            mQueue.add(atCommand);
+    public ATCommandQueue(int maxSize, OverflowPolicy policy, boolean replaceDuplicates) {
+        mMaxSize = Math.max(1, maxSize);
+        mPolicy = policy;
+        mReplaceDuplicates = replaceDuplicates;
+        mCommands = new ATCommand[mMaxSize];
+        mAdmissions = new long[mMaxSize];
+        mSize = 0;
+        mNextAdmission = 0;
+        mDropped = new long[ATCommandType.values().length];
+        mReplaced = 0;
+    }
+
+    // Return whether |atCommand| was queued.
+    public synchronized boolean add(ATCommand atCommand) {
+        if (mReplaceDuplicates) {
+            for (int i = 0; i < mSize; i++) {
+                if (atCommand.isDuplicateOf(mCommands[i])) {
+                    mCommands[i] = atCommand;
+                    ++mReplaced;
+                    return true;
+                }
+            }
+        }
+
+        if (mSize >= mMaxSize) {
+            int victim = findVictim(atCommand);
+            if (victim < 0) {
+                if (!isCritical(atCommand)) {
+                    countDropped(atCommand);
+                    return false;
+                }
+            } else {
+                countDropped(remove(victim));
+            }
         }
+
+        if (mSize == mCommands.length) grow();
+        int index = mSize;
+        while (index > 0 && atCommand.compareTo(mCommands[index - 1]) < 0) --index;
+        System.arraycopy(mCommands, index, mCommands, index + 1, mSize - index);
+        System.arraycopy(mAdmissions, index, mAdmissions, index + 1, mSize - index);
+        mCommands[index] = atCommand;
+        mAdmissions[index] = mNextAdmission++;
+        ++mSize;
+        notifyAll();
+        return true;
     }
 
-    public ATCommand take() {
-        ATCommand atCommand = null;
-        try {
-            atCommand = mQueue.take();
-        } catch (InterruptedException e) {
-            return null;
+    // Index of the queued command to drop for |atCommand|, -1 to drop
+    // |atCommand| itself.
+    private int findVictim(ATCommand atCommand) {
+        boolean critical = isCritical(atCommand);
+        if (mPolicy == OverflowPolicy.REJECT_NEW && !critical) return -1;
+
+        int victim = -1;
+        if (mPolicy == OverflowPolicy.EVICT_OLDEST && !critical) {
+            for (int i = 0; i < mSize; i++) {
+                if (isCritical(mCommands[i])) continue;
+                if (victim < 0 || mAdmissions[i] < mAdmissions[victim]) victim = i;
+            }
+            return victim;
+        }
+
+        // The lowest priority is at the end, its oldest command first.
+        for (int i = mSize - 1; i >= 0; i--) {
+            ATCommand queued = mCommands[i];
+            if (victim >= 0 && queued.getPriority() != mCommands[victim].getPriority()) break;
+            if (!isCritical(queued) && queued.getPriority() <= atCommand.getPriority()) victim = i;
         }
+        return victim;
+    }
+
+    private static boolean isCritical(ATCommand atCommand) {
+        return atCommand.getPriority() >= BaseCommand.PRIORITY_HIGH;
+    }
 
+    private ATCommand remove(int index) {
+        ATCommand atCommand = mCommands[index];
+        System.arraycopy(mCommands, index + 1, mCommands, index, mSize - index - 1);
+        System.arraycopy(mAdmissions, index + 1, mAdmissions, index, mSize - index - 1);
+        mCommands[--mSize] = null;
         return atCommand;
     }
+
+    // Only critical commands go over the bound.
+    private void grow() {
+        ATCommand[] commands = new ATCommand[mCommands.length * 2];
+        long[] admissions = new long[mCommands.length * 2];
+        System.arraycopy(mCommands, 0, commands, 0, mSize);
+        System.arraycopy(mAdmissions, 0, admissions, 0, mSize);
+        mCommands = commands;
+        mAdmissions = admissions;
+    }
+
+    private void countDropped(ATCommand atCommand) {
+        ++mDropped[atCommand.getCommandType().ordinal()];
+        ARDronePilotLog.LOG.w(TAG, "Queue full, dropped " + atCommand.getCommandType().getName());
+    }
+
+    public ATCommand take() {
+        synchronized (this) {
+            try {
+                while (mSize == 0) wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return remove(0);
+        }
+    }
+
+    // Return the command with the highest priority, or null if the queue is empty.
+    public synchronized ATCommand poll() {
+        return mSize == 0 ? null : remove(0);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    // Commands dropped because the queue was full, by command type name.
+    public synchronized Map<String, Long> dropped() {
+        HashMap<String, Long> dropped = new HashMap<String, Long>();
+        ATCommandType[] types = ATCommandType.values();
+        for (int i = 0; i < types.length; i++) {
+            if (mDropped[i] > 0) dropped.put(types[i].getName(), mDropped[i]);
+        }
+        return dropped;
+    }
+
+    // Commands which replaced a queued duplicate.
+    public synchronized long replaced() {
+        return mReplaced;
+    }
 }
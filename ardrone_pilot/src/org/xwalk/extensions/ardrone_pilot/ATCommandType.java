@@ -0,0 +1,25 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+// What a command does, several types can share an AT command name.
+public enum ATCommandType {
+    CONFIG("Config"),
+    ANIM("Anim"),
+    TAKEOFF("Takeoff"),
+    LANDING("Landing"),
+    EMERGENCY("Emergency"),
+    FTRIM("Ftrim"),
+    LED("Led"),
+    COMWDG("Comwdg"),
+    HOVER("Hover"),
+    MOVE("Move"),
+    CTRL("Ctrl"),
+    QUIT("Quit");
+
+    private final String name;
+    private ATCommandType(String name) { this.name = name; }
+    public String getName() { return name; }
+}
@@ -0,0 +1,44 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+class BaseCommand {
+    static final int PRIORITY_LOW = 0;
+    static final int PRIORITY_MEDIUM = 50;
+    static final int PRIORITY_HIGH = 80;
+    static final int PRIORITY_VERY_HIGH = 100;
+
+    final String mCommandName;
+    final ATCommandType mType;
+
+    BaseCommand(String commandName, ATCommandType type) {
+        mCommandName = commandName;
+        mType = type;
+    }
+
+    ATCommandType getType() {
+        return mType;
+    }
+
+    // Whether the parameters never change, so the command can be pre-encoded.
+    boolean isConstant() {
+        return false;
+    }
+
+    String getCommandName() {
+        return mCommandName;
+    }
+
+    int getPriority() {
+        return PRIORITY_LOW;
+    }
+
+    boolean isDuplicateOf(BaseCommand other) {
+        return getClass() == other.getClass();
+    }
+
+    void encodeParameters(ATCommandEncoder encoder) {
+    }
+}
@@ -0,0 +1,28 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+class ConfigCommand extends BaseCommand {
+    String mName;
+    String mValue;
+
+    ConfigCommand(String name, String value) {
+        super("CONFIG", ATCommandType.CONFIG);
+        mName = name;
+        mValue = value;
+    }
+
+    // Only the last value set for a key matters.
+    @Override
+    boolean isDuplicateOf(BaseCommand other) {
+        return super.isDuplicateOf(other) && mName.equals(((ConfigCommand) other).mName);
+    }
+
+    @Override
+    void encodeParameters(ATCommandEncoder encoder) {
+        encoder.appendString(mName);
+        encoder.appendString(mValue);
+    }
+}
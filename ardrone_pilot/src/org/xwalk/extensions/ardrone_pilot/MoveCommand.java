@@ -0,0 +1,17 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+class MoveCommand extends PcmdCommand {
+    MoveCommand(boolean combinedYawEnable, float leftRightTilt, float frontBackTilt,
+            float verticalSpeed, float angularSpeed) {
+        super(false, ATCommandType.MOVE);
+        mCombinedYawEnable = combinedYawEnable;
+        mLeftRrightTilt = leftRightTilt;
+        mFrontBackTilt = frontBackTilt;
+        mVerticalSpeed = verticalSpeed;
+        mAngularSpeed = angularSpeed;
+    }
+}
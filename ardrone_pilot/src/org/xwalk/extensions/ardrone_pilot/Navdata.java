@@ -0,0 +1,133 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+/*
+ * The latest navdata packet, decoded in place.
+ *
+ * A packet is a 16 bytes header followed by options, each starting with a
+ * 16 bits tag and a 16 bits size which includes those 4 bytes. The demo
+ * option carries the flight state and attitude, the checksum option ends
+ * the packet with the sum of all the bytes before it. Everything is
+ * little-endian. decode() only writes primitive fields, so one instance is
+ * reused for every packet.
+ */
+public class Navdata {
+    public static final int NAVDATA_HEADER = 0x55667788;
+
+    // Header, state, sequence number and vision flag.
+    private static final int HEADER_SIZE = 16;
+    private static final int OPTION_HEADER_SIZE = 4;
+    private static final int TAG_DEMO = 0;
+    private static final int TAG_CHECKSUM = 0xffff;
+    // Control state, battery, 3 angles, altitude and 3 speeds.
+    private static final int DEMO_SIZE = OPTION_HEADER_SIZE + 9 * 4;
+    private static final int CHECKSUM_SIZE = OPTION_HEADER_SIZE + 4;
+
+    // Bits of the drone state word.
+    public static final int STATE_FLYING = 1 << 0;
+    public static final int STATE_COMMAND_ACK = 1 << 6;
+    public static final int STATE_BOOTSTRAP = 1 << 11;
+    public static final int STATE_LOW_BATTERY = 1 << 15;
+    public static final int STATE_EMERGENCY = 1 << 31;
+
+    private int mState;
+    private long mSequence;
+
+    private boolean mHasDemo;
+    private int mControlState;
+    private int mBattery;
+    private float mPitch;
+    private float mRoll;
+    private float mYaw;
+    private int mAltitude;
+    private float mVx;
+    private float mVy;
+    private float mVz;
+
+    // Decode the |length| first bytes of |data|. Return false, leaving the
+    // fields as they were, if the packet is malformed or its checksum wrong.
+    public boolean decode(byte[] data, int length) {
+        if (length < HEADER_SIZE || readInt(data, 0) != NAVDATA_HEADER) return false;
+
+        int demo = -1;
+        int offset = HEADER_SIZE;
+        while (offset + OPTION_HEADER_SIZE <= length) {
+            int tag = readShort(data, offset);
+            int size = readShort(data, offset + 2);
+            if (size < OPTION_HEADER_SIZE || offset + size > length) return false;
+
+            if (tag == TAG_DEMO && size >= DEMO_SIZE) {
+                demo = offset + OPTION_HEADER_SIZE;
+            } else if (tag == TAG_CHECKSUM) {
+                if (size < CHECKSUM_SIZE) return false;
+                if (readInt(data, offset + OPTION_HEADER_SIZE) != checksum(data, offset)) return false;
+                break;
+            }
+            offset += size;
+        }
+
+        mState = readInt(data, 4);
+        mSequence = readInt(data, 8) & 0xffffffffL;
+        // In bootstrap mode the drone only sends the header.
+        mHasDemo = demo >= 0;
+        if (mHasDemo) {
+            mControlState = readInt(data, demo) >>> 16;
+            mBattery = readInt(data, demo + 4);
+            mPitch = Float.intBitsToFloat(readInt(data, demo + 8));
+            mRoll = Float.intBitsToFloat(readInt(data, demo + 12));
+            mYaw = Float.intBitsToFloat(readInt(data, demo + 16));
+            mAltitude = readInt(data, demo + 20);
+            mVx = Float.intBitsToFloat(readInt(data, demo + 24));
+            mVy = Float.intBitsToFloat(readInt(data, demo + 28));
+            mVz = Float.intBitsToFloat(readInt(data, demo + 32));
+        }
+        return true;
+    }
+
+    // Sequence number of the packet in |data|, or -1 if it is too short.
+    public static long sequenceOf(byte[] data, int length) {
+        if (length < HEADER_SIZE) return -1;
+        return readInt(data, 8) & 0xffffffffL;
+    }
+
+    private static int checksum(byte[] data, int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i++) sum += data[i] & 0xff;
+        return sum;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8
+                | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    public int state() { return mState; }
+    public long sequence() { return mSequence; }
+    public boolean isFlying() { return (mState & STATE_FLYING) != 0; }
+    public boolean isEmergency() { return (mState & STATE_EMERGENCY) != 0; }
+    public boolean isLowBattery() { return (mState & STATE_LOW_BATTERY) != 0; }
+
+    // Whether the fields below were sent, i.e. the drone is not in bootstrap mode.
+    public boolean hasDemo() { return mHasDemo; }
+    // Landed, flying, hovering, etc, see ardrone_pilot.js.
+    public int controlState() { return mControlState; }
+    // Battery charge, in percent.
+    public int battery() { return mBattery; }
+    // Angles in millidegrees.
+    public float pitch() { return mPitch; }
+    public float roll() { return mRoll; }
+    public float yaw() { return mYaw; }
+    // In millimeters.
+    public int altitude() { return mAltitude; }
+    // Speeds in millimeters per second.
+    public float vx() { return mVx; }
+    public float vy() { return mVy; }
+    public float vz() { return mVz; }
+}
@@ -0,0 +1,46 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+/*
+ * Build the 'navdata' event, written by hand into a reused StringBuilder
+ * instead of going through a JSONObject tree per event.
+ */
+public class NavdataMessage {
+    private final StringBuilder mBuilder;
+
+    public NavdataMessage() {
+        mBuilder = new StringBuilder(512);
+    }
+
+    public String build(Navdata navdata) {
+        StringBuilder b = mBuilder;
+        b.setLength(0);
+        b.append("{\"eventName\":\"navdata\",\"data\":{\"sequence\":").append(navdata.sequence());
+        b.append(",\"state\":").append(navdata.state());
+        b.append(",\"flying\":").append(navdata.isFlying());
+        b.append(",\"emergency\":").append(navdata.isEmergency());
+        b.append(",\"lowBattery\":").append(navdata.isLowBattery());
+        if (navdata.hasDemo()) {
+            b.append(",\"controlState\":").append(navdata.controlState());
+            b.append(",\"battery\":").append(navdata.battery());
+            appendFloat(b.append(",\"pitch\":"), navdata.pitch());
+            appendFloat(b.append(",\"roll\":"), navdata.roll());
+            appendFloat(b.append(",\"yaw\":"), navdata.yaw());
+            b.append(",\"altitude\":").append(navdata.altitude());
+            appendFloat(b.append(",\"vx\":"), navdata.vx());
+            appendFloat(b.append(",\"vy\":"), navdata.vy());
+            appendFloat(b.append(",\"vz\":"), navdata.vz());
+        }
+        b.append("}}");
+        return b.toString();
+    }
+
+    // NaN and infinities are not valid JSON.
+    private static void appendFloat(StringBuilder b, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) value = 0f;
+        b.append(value);
+    }
+}
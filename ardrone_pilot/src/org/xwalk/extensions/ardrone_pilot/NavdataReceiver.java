@@ -0,0 +1,140 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/*
+ * Decode the navdata the drone sends to UDP port 5554 in place and hand it to
+ * the listeners. ARDronePilotLoop owns the channel, calls onReadable() when
+ * it has packets and onTimer() regularly.
+ *
+ * The drone starts sending once it gets a trigger packet on its navdata port,
+ * and stops when it does not hear from us, so the trigger is sent again
+ * whenever the stream goes quiet. The state word goes to the state listener
+ * on every packet. The page gets at most |eventRate| events per second, each
+ * with the latest packet; packets arriving in between are coalesced.
+ */
+public class NavdataReceiver {
+    private static final String TAG = "NavdataReceiver";
+
+    public static final int NAVDATA_PORT = 5554;
+
+    // Events per second sent to the page. The drone sends 15 packets per
+    // second in demo mode, 200 otherwise.
+    public static final int DEFAULT_EVENT_RATE = 15;
+    public static final int MAX_EVENT_RATE = 60;
+
+    // How often onTimer() should be called.
+    public static final long TIMER_PERIOD = 100 * 1000000L;
+
+    private static final int MAX_PACKET_SIZE = 4096;
+    private static final long QUIET_PERIOD = 500 * 1000000L;
+    private static final byte[] TRIGGER = { 1, 0, 0, 0 };
+
+    public interface Listener {
+        // Called on the loop thread for every new navdata packet.
+        void onNavdataState(int state);
+    }
+
+    public interface EventListener {
+        // Called on the loop thread, |navdata| is only valid during the call.
+        void onNavdata(Navdata navdata);
+    }
+
+    private final ByteBuffer mPacket;
+    private final ByteBuffer mTrigger;
+    private final Navdata mNavdata;
+    private final Listener mListener;
+    private final EventListener mEventListener;
+    private final long mEventInterval;
+
+    private long mLastSequence;
+    private long mLastPacket;
+    private long mLastTrigger;
+    private long mLastEvent;
+    // A packet arrived since the last event.
+    private boolean mEventPending;
+
+    private volatile long mPackets;
+    private volatile long mInvalidPackets;
+    private volatile long mEvents;
+
+    // |eventRate| is clamped to MAX_EVENT_RATE, 0 disables events.
+    public NavdataReceiver(Listener listener, EventListener eventListener, int eventRate) {
+        mPacket = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        mTrigger = ByteBuffer.wrap(TRIGGER);
+        mNavdata = new Navdata();
+        mListener = listener;
+        eventRate = Math.min(eventRate, MAX_EVENT_RATE);
+        mEventListener = eventRate > 0 ? eventListener : null;
+        mEventInterval = eventRate > 0 ? 1000000000L / eventRate : 0;
+        mLastSequence = 0;
+        long now = System.nanoTime();
+        mLastPacket = now - QUIET_PERIOD;
+        mLastTrigger = now - QUIET_PERIOD;
+        mLastEvent = now - mEventInterval;
+        mEventPending = false;
+    }
+
+    // |channel| is connected to the navdata port of the drone.
+    void onReadable(DatagramChannel channel) throws IOException {
+        while (true) {
+            mPacket.clear();
+            if (channel.read(mPacket) <= 0) return;
+            onPacket(mPacket.array(), mPacket.position());
+        }
+    }
+
+    void onTimer(DatagramChannel channel, long now) throws IOException {
+        if (now - mLastPacket >= QUIET_PERIOD && now - mLastTrigger >= QUIET_PERIOD) {
+            mLastTrigger = now;
+            mTrigger.clear();
+            channel.write(mTrigger);
+        }
+
+        // Do not hold the last packet back because the stream stopped.
+        if (mEventPending && now - mLastEvent >= mEventInterval) publish(now);
+    }
+
+    private void onPacket(byte[] data, int length) {
+        // UDP may reorder, but the drone restarts from 1 when reconnected.
+        long sequence = Navdata.sequenceOf(data, length);
+        if (sequence < 0) {
+            ++mInvalidPackets;
+            return;
+        }
+        if (sequence <= mLastSequence && sequence != 1) return;
+
+        if (!mNavdata.decode(data, length)) {
+            ++mInvalidPackets;
+            return;
+        }
+        mLastSequence = sequence;
+
+        long now = System.nanoTime();
+        mLastPacket = now;
+        ++mPackets;
+        mListener.onNavdataState(mNavdata.state());
+
+        if (mEventListener == null) return;
+        mEventPending = true;
+        if (now - mLastEvent >= mEventInterval) publish(now);
+    }
+
+    private void publish(long now) {
+        mEventPending = false;
+        mLastEvent = now;
+        ++mEvents;
+        mEventListener.onNavdata(mNavdata);
+    }
+
+    public long packets() { return mPackets; }
+    // Packets dropped because malformed or with a wrong checksum.
+    public long invalidPackets() { return mInvalidPackets; }
+    public long events() { return mEvents; }
+}
@@ -0,0 +1,43 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone_pilot;
+
+class PcmdCommand extends BaseCommand {
+    boolean mCombinedYawEnable;
+    boolean mHover;
+
+    float mAngularSpeed;
+    float mFrontBackTilt;
+    float mLeftRrightTilt;
+    float mVerticalSpeed;
+
+    PcmdCommand(boolean hover, ATCommandType type) {
+        super("PCMD", type);
+        mHover = hover;
+    }
+
+    @Override
+    void encodeParameters(ATCommandEncoder encoder) {
+        if (mHover) {
+            encoder.appendInt(0);
+            encoder.appendFloat(0f);
+            encoder.appendFloat(0f);
+            encoder.appendFloat(0f);
+            encoder.appendFloat(0f);
+            return;
+        }
+
+        int mode = 1;
+        if (mCombinedYawEnable) {
+            mode |= (1 << 1);
+        }
+
+        encoder.appendInt(mode);
+        encoder.appendFloat(mLeftRrightTilt);
+        encoder.appendFloat(mFrontBackTilt);
+        encoder.appendFloat(mVerticalSpeed);
+        encoder.appendFloat(mAngularSpeed);
+    }
+}
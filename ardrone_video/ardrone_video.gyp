@@ -7,16 +7,24 @@
     '../build/common.gypi',
   ],
 
+  'variables': {
+    # The JS API with the shared decoder of binary messages and the event
+    # credits in front.
+    'gen_js_file': '<(SHARED_INTERMEDIATE_DIR)/ardrone_video/ardrone_video.js',
+  },
+
   'targets': [
     {
       'target_name': 'ardrone_video',
       'type': 'none',
+      'dependencies': [ 'ardrone_video_js' ],
       'variables': {
         # FIXME(hdq) http://code.google.com/p/gyp/issues/detail?id=112
         # After r1913 merged we can change back to:
         # 'java_in_dir': '.',
         'java_in_dir': '<(DEPTH)/ardrone_video',
-        'js_file': 'ardrone_video.js',
+        'additional_src_dirs': [ '<(DEPTH)/common/src' ],
+        'js_file': '<(gen_js_file)',
         'json_file': 'ardrone_video.json',
         'input_jars_paths': [
           '<(app_runtime_java_jar)',
@@ -27,6 +35,26 @@
       },
       'includes': [ '../build/java.gypi' ],
     },
+    {
+      'target_name': 'ardrone_video_js',
+      'type': 'none',
+      'actions': [
+        {
+          'action_name': 'combine_js',
+          'inputs': [
+            '../common/binary_message.js',
+            '../common/event_credits.js',
+            'ardrone_video.js',
+          ],
+          'outputs': [
+            '<(gen_js_file)',
+          ],
+          'action': ['sh', '-c',
+                     'cat ../common/binary_message.js ../common/event_credits.js ardrone_video.js > <(gen_js_file)',
+                    ],
+        },
+      ],
+    },
     {
       'target_name': 'pack_jars',
       'type': 'none',
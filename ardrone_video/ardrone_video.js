@@ -30,6 +30,17 @@ var ARDroneVideoChannel = {
 
 window.ARDroneVideoChannel = ARDroneVideoChannel;
 
+var ARDroneVideoOverflowPolicy = {
+  // Wait until the next stage catches up, the socket reader may stall.
+  BLOCK: 1,
+  // Drop the oldest queued group of pictures to make room.
+  DROP_OLDEST_GOP: 2,
+  // Drop incoming frames until the next IDR-Frame.
+  DROP_NON_IDR: 3
+};
+
+window.ARDroneVideoOverflowPolicy = ARDroneVideoOverflowPolicy;
+
 function ARDroneVideoOption () {
   this.ipAddress = '192.168.1.1';
   this.port = 5555;
@@ -37,6 +48,21 @@ function ARDroneVideoOption () {
   this.bitrate = 15000; // also called fps, in millisecond
   this.codec = ARDroneVideoCodec.P264;
   this.channel = ARDroneVideoChannel.ZAP_CHANNEL_HORI;
+  this.queueSize = 4; // capacity of each queue between the pipeline stages
+  this.overflowPolicy = ARDroneVideoOverflowPolicy.DROP_OLDEST_GOP;
+  // Send each frame as a 'newframe' event instead of mp4 files, queueSize
+  // then counts frames.
+  this.live = false;
+  // Send the 'newframe' events as binary messages instead of JSON with the
+  // frame in base64: no encoding on either side, but about 1.5 bytes on the
+  // channel per frame byte against 4/3.
+  this.binaryFrames = false;
+  // Number of reused mp4 files, the oldest one is overwritten when the page
+  // has not removed any of them.
+  this.cacheSlots = 4;
+  this.receiveBufferSize = 256 * 1024; // bytes, 0 means the system default
+  this.connectTimeout = 5000; // milliseconds, 0 means no timeout
+  this.readTimeout = 0; // milliseconds, 0 means no timeout
 };
 
 window.ARDroneVideoOption = ARDroneVideoOption;
@@ -61,6 +87,11 @@ exports.init = function(option) {
 };
 
 exports.play = function(idOfCanvas) {
+  // In live mode the page renders the 'newframe' events with its own decoder.
+  if (exports.option && exports.option.live) {
+    return _createPromise({ 'cmd': 'play' });
+  }
+
   var canvas = document.getElementById(idOfCanvas);
   if (!canvas) {
     console.log('Invalid canvas id: ' + idOfCanvas);
@@ -159,6 +190,16 @@ exports.removeFile = function(path) {
   return _createPromise(msg);
 };
 
+// Resolve with the counters and per-stage latency histograms of the video
+// pipeline, and the sent, coalesced and dropped events. Durations are in
+// microseconds.
+exports.getStats = function() {
+  var msg = {
+    'cmd': 'getStats'
+  };
+  return _createPromise(msg);
+};
+
 function _addConstProperty(obj, propertyKey, propertyValue) {
   Object.defineProperty(obj, propertyKey, {
     configurable: false,
@@ -176,8 +217,70 @@ window.ARDroneNewVideoEvent = function(data) {
   this.prototype = new Event('ARDroneNewVideoEvent');
 };
 
-extension.setMessageListener(function(json) {
-  var msg = JSON.parse(json);
+// |data| has the fields of the event, |data.data| the Annex B NAL units of
+// the frame.
+window.ARDroneNewFrameEvent = function(data) {
+  _addConstProperty(this, 'frameNumber', data.frameNumber);
+  _addConstProperty(this, 'timestamp', data.timestamp);
+  _addConstProperty(this, 'keyFrame', data.keyFrame);
+  _addConstProperty(this, 'width', data.width);
+  _addConstProperty(this, 'height', data.height);
+  _addConstProperty(this, 'data', data.data);
+  this.prototype = new Event('ARDroneNewFrameEvent');
+};
+
+// Binary message types, see ARDroneVideoFrameMessage.java.
+var BINARY_TYPE_NEWFRAME = 1;
+
+function _decodeNewFrame(frame) {
+  var view = frame.view;
+  return {
+    'frameNumber': view.getUint32(0),
+    'timestamp': view.getUint32(4),
+    'keyFrame': view.getUint8(8) != 0,
+    'width': view.getUint16(9),
+    'height': view.getUint16(11),
+    'data': frame.payload.subarray(13)
+  };
+}
+
+function _base64ToUint8Array(base64) {
+  var binary = window.atob(base64);
+  var length = binary.length;
+  var bytes = new Uint8Array(length);
+  for (var i = 0; i < length; i++)
+    bytes[i] = binary.charCodeAt(i);
+  return bytes;
+}
+
+function _dispatchEvent(eventName, data) {
+  for (var id in g_listeners) {
+    if (g_listeners[id]['eventName'] === eventName) {
+      var event = null;
+      if (eventName == 'deviceready') {
+        event = new ARDroneDeviceReadyEvent();
+      } else if (eventName == 'newvideoready') {
+        event = new ARDroneNewVideoEvent(data);
+      } else if (eventName == 'newframe') {
+        event = new ARDroneNewFrameEvent(data);
+      }
+      g_listeners[id]['callback'](event);
+    }
+  }
+}
+
+extension.setMessageListener(function(message) {
+  if (BinaryMessage.isBinary(message)) {
+    EventCredits.handled();
+    var frames = BinaryMessage.decode(message);
+    for (var i = 0; i < frames.length; i++) {
+      if (frames[i].type == BINARY_TYPE_NEWFRAME)
+        _dispatchEvent('newframe', _decodeNewFrame(frames[i]));
+    }
+    return;
+  }
+
+  var msg = JSON.parse(message);
 
   // Handle promises
   if (!msg.eventName) {
@@ -192,22 +295,16 @@ extension.setMessageListener(function(json) {
   }
 
   // Handle events
-  for (var id in g_listeners) {
-    if (g_listeners[id]['eventName'] === msg.eventName) {
-      var event = null;
-      if (msg.eventName == 'deviceready') {
-        event = new ARDroneDeviceReadyEvent();
-      } else if (msg.eventName == 'newvideoready') {
-        event = new ARDroneNewVideoEvent(msg.data);
-      }
-      g_listeners[id]['callback'](event);
-    }
-  }
+  EventCredits.handled();
+  if (msg.eventName == 'newframe')
+    msg.data.data = _base64ToUint8Array(msg.data.nal);
+  _dispatchEvent(msg.eventName, msg.data);
 });
 
 exports.addEventListener = function(eventName, callback) {
   if (eventName == 'deviceready' ||
-      eventName == 'newvideoready') {
+      eventName == 'newvideoready' ||
+      eventName == 'newframe') {
     var listener = {
       'eventName': eventName,
       'callback': callback
@@ -0,0 +1,101 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.nio.ByteBuffer;
+
+/*
+ * The cost of assembling a group of pictures, P264Gop against the removed
+ * P264Frame.appendData(), which copied the whole group into a new array for
+ * every frame.
+ *
+ * Both take pooled payload buffers of FRAME_SIZE bytes, as P264StreamReader
+ * hands them out, and give them back to the pool. Writing the group out is
+ * left out. Run it on the host from the module directory with:
+ *
+ *   javac -d /tmp/bench -sourcepath src:benchmark:../common/src:../common/benchmark \
+ *       benchmark/org/xwalk/extensions/ardrone/video/GopBenchmark.java
+ *   java -cp /tmp/bench org.xwalk.extensions.ardrone.video.GopBenchmark
+ */
+public class GopBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int FRAME_SIZE = 20 * 1024;
+    private static final int[] GOP_SIZES = { 15, 30, 120 };
+    // Enough frames per measurement for the short groups to register.
+    private static final int FRAMES_PER_RUN = 3600;
+
+    private static long sSink;
+
+    public static void main(String[] args) {
+        P264PayloadPool pool = new P264PayloadPool(256, 256 * 1024);
+        P264Frame frame = new P264Frame(pool);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int frames : GOP_SIZES) {
+                int gops = Math.max(1, FRAMES_PER_RUN / frames);
+                double copyTime = runCopy(pool, frames, gops);
+                double gopTime = runGop(pool, frame, frames, gops);
+                System.out.println(String.format(
+                        "%3d frames: appendData %.3f ms, P264Gop %.3f ms per GOP, %.1f MB copied before",
+                        frames, copyTime, gopTime, copiedBytes(frames) / 1e6));
+            }
+        }
+        // Keep the results alive.
+        if (sSink == 42) System.out.print("");
+    }
+
+    private static double runCopy(P264PayloadPool pool, int frames, int gops) {
+        long start = System.nanoTime();
+        for (int g = 0; g < gops; g++) {
+            byte[] result = null;
+            for (int i = 0; i < frames; i++) {
+                ByteBuffer payload = payload(pool, i);
+                result = appendData(result, payload);
+                pool.release(payload);
+            }
+            sSink += result.length;
+        }
+        return (System.nanoTime() - start) / 1e6 / gops;
+    }
+
+    private static double runGop(P264PayloadPool pool, P264Frame frame, int frames, int gops) {
+        P264Gop gop = new P264Gop(pool);
+        long start = System.nanoTime();
+        for (int g = 0; g < gops; g++) {
+            for (int i = 0; i < frames; i++) {
+                frame.setPayload(payload(pool, i));
+                gop.append(frame);
+            }
+            sSink += gop.frameCount();
+            gop.recycle();
+        }
+        return (System.nanoTime() - start) / 1e6 / gops;
+    }
+
+    private static ByteBuffer payload(P264PayloadPool pool, int index) {
+        ByteBuffer payload = pool.acquire(FRAME_SIZE);
+        payload.put(0, (byte) index);
+        return payload;
+    }
+
+    // Bytes appendData() copied for a group of |frames|: the group so far
+    // plus the new frame, for every frame.
+    private static long copiedBytes(int frames) {
+        long bytes = 0;
+        for (int i = 1; i <= frames; i++) bytes += (long) i * FRAME_SIZE;
+        return bytes;
+    }
+
+    // P264Frame.appendData() as it was before P264Gop.
+    private static byte[] appendData(byte[] arr1, ByteBuffer arr2) {
+        if (arr2 == null) return arr1;
+
+        int length1 = arr1 == null ? 0 : arr1.length;
+        byte[] result = new byte[length1 + arr2.remaining()];
+        if (length1 != 0) System.arraycopy(arr1, 0, result, 0, length1);
+        arr2.duplicate().get(result, length1, arr2.remaining());
+        return result;
+    }
+}
@@ -0,0 +1,125 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+/*
+ * P264StreamReader over a clean PaVE stream delivered in chunks of random
+ * sizes, as a socket does: headers and payloads end up split across reads at
+ * every possible offset, including a header whose 12-byte prefix is in the
+ * window but not the rest of it. Every frame is checked against what was
+ * written, then the parse time per frame is reported. Run it on the host from
+ * the module directory with:
+ *
+ *   javac -d /tmp/bench -sourcepath src:benchmark:../common/src:../common/benchmark \
+ *       benchmark/org/xwalk/extensions/ardrone/video/StreamReaderBenchmark.java
+ *   java -cp /tmp/bench org.xwalk.extensions.ardrone.video.StreamReaderBenchmark
+ */
+public class StreamReaderBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int FRAMES = 2000;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAX_PAYLOAD_SIZE = 30000;
+    // Chunks of 1 byte up to about two frames.
+    private static final int MAX_CHUNK_SIZE = 2 * (HEADER_SIZE + MAX_PAYLOAD_SIZE);
+
+    public static void main(String[] args) throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            Random random = new Random(round);
+            int[] payloadSizes = new int[FRAMES];
+            for (int i = 0; i < FRAMES; i++) payloadSizes[i] = 1 + random.nextInt(MAX_PAYLOAD_SIZE);
+            byte[] stream = stream(payloadSizes);
+
+            P264PayloadPool pool = new P264PayloadPool(4, 256 * 1024);
+            P264StreamReader reader = new P264StreamReader(
+                    new ChunkedChannel(stream, new Random(round + 1000)), pool);
+            P264Frame frame = new P264Frame(pool);
+            long parseNanos = 0;
+            for (int i = 0; i < FRAMES; i++) {
+                reader.readFrame(frame);
+                parseNanos += reader.lastParseNanos();
+                check(frame, i, payloadSizes[i]);
+                frame.discard();
+            }
+            System.out.println(String.format(
+                    "round %d: %d frames read and checked, %d resyncs, parse %.0f ns per frame",
+                    round, reader.frames(), reader.resyncs(), parseNanos / (double) FRAMES));
+        }
+    }
+
+    private static void check(P264Frame frame, int index, int payloadSize) {
+        ByteBuffer payload = frame.getPayload();
+        boolean ok = frame.getFrameNumber() == index
+                && frame.getTimestamp() == index * 33L
+                && frame.isStartFrame() == (index % 30 == 0)
+                && frame.getDisplayWidth() == 640 && frame.getDisplayHeight() == 360
+                && payload.remaining() == payloadSize
+                && payload.get(0) == (byte) index
+                && payload.get(payloadSize - 1) == (byte) (index >>> 8);
+        if (!ok) throw new IllegalStateException("Frame " + index + " read wrong");
+    }
+
+    private static byte[] stream(int[] payloadSizes) {
+        int size = 0;
+        for (int payloadSize : payloadSizes) size += HEADER_SIZE + payloadSize;
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < payloadSizes.length; i++) {
+            int start = out.position();
+            out.put((byte) 'P').put((byte) 'a').put((byte) 'V').put((byte) 'E');
+            out.put(start + 6, (byte) HEADER_SIZE);
+            out.putInt(start + 8, payloadSizes[i]);
+            out.putShort(start + 12, (short) 640);
+            out.putShort(start + 14, (short) 368);
+            out.putShort(start + 16, (short) 640);
+            out.putShort(start + 18, (short) 360);
+            out.putInt(start + 20, i);
+            out.putInt(start + 24, i * 33);
+            // IDR-Frame every 30 frames, P-Frames otherwise.
+            out.put(start + 30, (byte) (i % 30 == 0 ? 1 : 3));
+            out.position(start + HEADER_SIZE);
+
+            int payloadStart = out.position();
+            out.position(payloadStart + payloadSizes[i]);
+            out.put(payloadStart, (byte) i);
+            out.put(out.position() - 1, (byte) (i >>> 8));
+        }
+        return out.array();
+    }
+
+    // Hands |data| out in chunks of random sizes.
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final byte[] mData;
+        private final Random mRandom;
+        private int mPosition;
+
+        ChunkedChannel(byte[] data, Random random) {
+            mData = data;
+            mRandom = random;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (mPosition == mData.length) throw new EOFException();
+            int size = Math.min(dst.remaining(), mData.length - mPosition);
+            size = Math.min(size, 1 + mRandom.nextInt(MAX_CHUNK_SIZE));
+            dst.put(mData, mPosition, size);
+            mPosition += size;
+            return size;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() {}
+    }
+}
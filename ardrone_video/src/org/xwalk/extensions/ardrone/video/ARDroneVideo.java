@@ -4,57 +4,70 @@
 
 package org.xwalk.extensions.ardrone.video;
 
-import android.util.Log;
 import android.content.Context;
 
-import com.coremedia.iso.boxes.Container;
-import com.googlecode.mp4parser.DataSource;
-import com.googlecode.mp4parser.FileDataSourceImpl;
-import com.googlecode.mp4parser.authoring.Movie;
-import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
-import com.googlecode.mp4parser.authoring.tracks.H264TrackImpl;
-
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.nio.channels.FileChannel;
-import java.util.Date;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import org.xwalk.app.runtime.extension.XWalkExtensionClient;
 import org.xwalk.app.runtime.extension.XWalkExtensionContextClient;
+import org.xwalk.extensions.common.EventPublisher;
 
 public class ARDroneVideo extends XWalkExtensionClient {
     private static final String TAG = "ARDroneVideoExtension";
 
+    private static final String EVENT_DEVICE_READY = "deviceready";
+    private static final String EVENT_NEW_VIDEO_READY = "newvideoready";
+    private static final String EVENT_NEW_FRAME = "newframe";
+
+    // Event messages the page may not have handled yet, a few frames in live
+    // mode.
+    private static final int EVENT_CREDITS = 4;
+
+    // Minimum intervals between events, in milliseconds. A segment is about a
+    // second of video, a page which fell behind gets only the latest one. Live
+    // frames come at most 30 per second, a burst after a stall is dropped up
+    // to the next key frame instead of flooding the page.
+    private static final long NEW_VIDEO_READY_INTERVAL = 250;
+    private static final long NEW_FRAME_INTERVAL = 10;
+
     private boolean mIsInitialized = false;
     private ARDroneVideoOption mOption;
-    private InputStream mVideoStream;
-    private Thread mParse2RawH264Thread;
-    private DecodeRunnable mRunnable;
+    private ARDroneVideoPipeline mPipeline;
+    private File mVideoCachedDir;
+    private VideoSegmentStore mSegmentStore;
 
     private Context mContext;
+    private final EventPublisher mEvents;
 
     public ARDroneVideo(String name, String jsApiContent, XWalkExtensionContextClient xwalkContext) {
         super(name, jsApiContent, xwalkContext);
         mContext = xwalkContext.getContext();
+        mEvents = new EventPublisher(new EventPublisher.Sender() {
+            @Override
+            public void send(String message) {
+                broadcastMessage(message);
+            }
+        }, EVENT_CREDITS);
+        mEvents.setMinInterval(EVENT_NEW_VIDEO_READY, NEW_VIDEO_READY_INTERVAL);
+        mEvents.setMinInterval(EVENT_NEW_FRAME, NEW_FRAME_INTERVAL);
     }
 
     @Override
     public void onResume() {
-        if (mRunnable != null) mRunnable.onResume();
+        if (mPipeline != null) mPipeline.onResume();
     }
 
     @Override
     public void onPause() {
-        if (mRunnable != null) mRunnable.onPause();
+        if (mPipeline != null) mPipeline.onPause();
     }
 
     @Override
@@ -64,16 +77,21 @@ public class ARDroneVideo extends XWalkExtensionClient {
     @Override
     public void onDestroy() {
         cleanUp();
+        mEvents.close();
     }
 
     @Override
     public void onMessage(int instanceID, String message) {
         if (message.isEmpty()) return;
-        Log.i(TAG, "Receive message: " + message);
+        if (ARDroneVideoLog.TRACE) ARDroneVideoLog.LOG.trace(TAG, "Receive message: ", message);
 
         try {
             JSONObject jsonInput = new JSONObject(message);
             String cmd = jsonInput.getString("cmd");
+            if (cmd.equals("eventCredits")) {
+                mEvents.onCredits(jsonInput.getInt("count"));
+                return;
+            }
 
             JSONObject jsonOutput = new JSONObject();
             if (cmd.equals("init")) {
@@ -84,6 +102,8 @@ public class ARDroneVideo extends XWalkExtensionClient {
                 jsonOutput.put("data", handleStop());
             } else if (cmd.equals("removeFile")) {
                 jsonOutput.put("data", handleRemoveFile(jsonInput.getString("path")));
+            } else if (cmd.equals("getStats")) {
+                jsonOutput.put("data", handleGetStats());
             } else {
                 jsonOutput.put("data", setErrorMessage("Unsupportted command: " + cmd));
             }
@@ -101,7 +121,7 @@ public class ARDroneVideo extends XWalkExtensionClient {
     }
 
     private void printErrorMessage(JSONException e) {
-        Log.e(TAG, e.toString());
+        ARDroneVideoLog.LOG.e(TAG, e.toString());
     }
 
     private JSONObject setErrorMessage(String error) {
@@ -111,16 +131,20 @@ public class ARDroneVideo extends XWalkExtensionClient {
             errorMessage.put("message", error);
             out.put("error", errorMessage);
         } catch (JSONException e) {
-            Log.e(TAG, e.toString());
+            ARDroneVideoLog.LOG.e(TAG, e.toString());
         }
         return out;
     }
 
     private JSONObject handleInit(JSONObject option) {
         mOption = new ARDroneVideoOption(option);
-        if (mOption.codec() == ARDroneVideoCodec.UNKNOWN || mOption.channel() == ARDroneVideoChannel.UNKNOWN)
+        if (mOption.codec() == ARDroneVideoCodec.UNKNOWN || mOption.channel() == ARDroneVideoChannel.UNKNOWN
+                || mOption.overflowPolicy() == ARDroneVideoOverflowPolicy.UNKNOWN)
             return setErrorMessage("Wrong options passed in.");
 
+        // Stop the previous pipeline, if any.
+        if (!cleanUp()) return setErrorMessage("Failed to stop the previous video streaming.");
+
         try {
             InetAddress address = null;
             // TODO(halton): use -java7 to support multiple catch
@@ -128,28 +152,57 @@ public class ARDroneVideo extends XWalkExtensionClient {
             try {
                 address = InetAddress.getByName(mOption.ipAddress());
             } catch (UnknownHostException e) {
-                Log.e(TAG, e.toString());
+                ARDroneVideoLog.LOG.e(TAG, e.toString());
                 return setErrorMessage("Unknown host: " + mOption.ipAddress());
             }
 
-            Socket socket = new Socket(address, mOption.port());
-            mVideoStream = socket.getInputStream();
-            mRunnable = new DecodeRunnable();
-            mParse2RawH264Thread = new Thread(mRunnable);
-            mParse2RawH264Thread.start();
+            VideoStreamChannel streamChannel = VideoStreamChannel.open(
+                    new InetSocketAddress(address, mOption.port()), mOption.receiveBufferSize(),
+                    mOption.connectTimeout(), mOption.readTimeout());
+
+            // Clean and recreated cached dir 
+            mVideoCachedDir = new File(mContext.getCacheDir() + "/video");
+            deleteDir(mVideoCachedDir);
+            mVideoCachedDir.mkdir();
+            mSegmentStore = new VideoSegmentStore(mVideoCachedDir, mOption.cacheSlots());
+
+            mPipeline = new ARDroneVideoPipeline(mOption, streamChannel, mSegmentStore,
+                    new ARDroneVideoPipeline.Listener() {
+                private final ARDroneVideoFrameMessage mFrameMessage = new ARDroneVideoFrameMessage(mOption.binaryFrames());
+                private boolean mWaitForKeyFrame;
+
+                @Override
+                public void onSegmentReady(File segment) {
+                    broadcastNewVideoReady(segment);
+                }
+
+                @Override
+                public void onFrameReady(P264Frame frame) {
+                    // Once a frame is dropped the next ones cannot be decoded
+                    // by the page, until the next key frame.
+                    if (mWaitForKeyFrame && !frame.isStartFrame()) {
+                        mEvents.drop(EVENT_NEW_FRAME);
+                        return;
+                    }
+
+                    // Send out 'newframe' event
+                    mWaitForKeyFrame = !mEvents.offer(EVENT_NEW_FRAME, mFrameMessage.build(frame));
+                }
+            });
+            mPipeline.start();
 
             // Send out 'deviceready' event
             JSONObject out = new JSONObject();
             try {
-                out.put("eventName", "deviceready");
+                out.put("eventName", EVENT_DEVICE_READY);
                 out.put("data", new JSONObject());
 
-                broadcastMessage(out.toString());
+                mEvents.publish(EVENT_DEVICE_READY, out.toString());
             } catch (JSONException e) {
                 printErrorMessage(e);
             }
         } catch (IOException e) {
-            Log.e(TAG, e.toString());
+            ARDroneVideoLog.LOG.e(TAG, e.toString());
             return setErrorMessage("Failed to start video streaming.");
         }
 
@@ -171,158 +224,82 @@ public class ARDroneVideo extends XWalkExtensionClient {
     }
 
     private JSONObject handleRemoveFile(String path) {
+        // Segment files are reused, removing one only frees its slot.
+        if (mSegmentStore != null && mSegmentStore.release(path)) return new JSONObject();
+
         File f = new File(path);
 
         if (!f.isFile()) return setErrorMessage("Invalid path: " + path);
         if (!f.delete()) return setErrorMessage("Failed to delete path: " + path);
 
-        Log.i(TAG, "Successfully remove file: " + path);
-        return new JSONObject();
-    }
-
-    private void cleanUp() {
-        if (mRunnable != null) mRunnable.cleanUp();
-
-        if (mParse2RawH264Thread != null) {
-            mParse2RawH264Thread.interrupt();
-            mParse2RawH264Thread = null;
+        if (ARDroneVideoLog.TRACE) {
+            ARDroneVideoLog.LOG.trace(TAG, "Successfully remove file: ", path);
         }
+        return new JSONObject();
     }
 
-    private class DecodeRunnable implements Runnable {
-        private Object mPauseLock;
-        private boolean mPaused;
-        private boolean mFinished;
-
-        private int mVideoCounter;
-        private Date startTime;
-
-        private File mVideoCachedDir;
-
-        public DecodeRunnable() {
-            mPauseLock = new Object();
-            mPaused = false;
-            mFinished = false;
-
-            mVideoCounter = 0;
-            startTime = new Date();
-
-            mVideoCachedDir = null;
-        }
-
-        @Override
-        public void run() {
-            P264Decoder p264Decoder = new P264Decoder();
-
-            if (mVideoCachedDir == null) {
-                mVideoCachedDir = new File(mContext.getCacheDir() + "/video");
-            }
-
-            // Clean and recreated cached dir 
-            if (mVideoCachedDir != null) deleteDir(mVideoCachedDir);
-            mVideoCachedDir.mkdir();
-
-            while (!mFinished) {
-                Date currentTime = new Date();
-                ++mVideoCounter;
-
-                File h264File = new File(mVideoCachedDir, mVideoCounter + ".h264");
-                File mp4File = new File(mVideoCachedDir, mVideoCounter + ".mp4");
-                try {
-                    byte[] bytes = p264Decoder.readFrames(mVideoStream, mOption.latency());
-                    Log.i(TAG, "Current h264 file is: " + h264File.getAbsolutePath() + "buffer size:" + bytes.length);
-                    Log.i(TAG, "Duration of " + mVideoCounter + " is: " + (currentTime.getTime() - startTime.getTime()));
-                    startTime = currentTime;
-
-                    if (bytes == null) continue;
-
-                    FileOutputStream h264OutputStream = new FileOutputStream(h264File, false);
-                    h264OutputStream.write(bytes);
-                    h264OutputStream.flush();
-                    h264OutputStream.close();
-
-                    Log.i(TAG, "Current mp4 file is " + mp4File.getAbsolutePath());
-                    muxerH264ToMp4(h264File, mp4File);
-
-                    h264File.delete();
-                } catch (IOException e) {
-                    Log.e(TAG, e.toString());
-                }
-
-                if (mp4File.exists()) {
-                    // Send out 'newvideoready' event
-                    JSONObject out = new JSONObject();
-                    try {
-                        out.put("eventName", "newvideoready");
-                        JSONObject path = new JSONObject();
-                        path.put("absolutePath", mp4File.getAbsolutePath());
-                        out.put("data", path);
-
-                        broadcastMessage(out.toString());
-                    } catch (JSONException e) {
-                        printErrorMessage(e);
-                    }
-                }
-
-                synchronized (mPauseLock) {
-                    while (mPaused) {
-                        try {
-                            mPauseLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, e.toString());
-                        }
-                    }
-                }
-            }
+    private JSONObject handleGetStats() {
+        if (mPipeline == null) {
+            return setErrorMessage("Please initialize first.");
         }
 
-        public void onPause() {
-            synchronized (mPauseLock) {
-                mPaused = true;
-            }
+        try {
+            JSONObject stats = mPipeline.stats().toJSON(mSegmentStore);
+            stats.put("events", mEvents.toJSON());
+            return stats;
+        } catch (JSONException e) {
+            printErrorMessage(e);
+            return setErrorMessage("Failed to get stats.");
         }
+    }
 
-        public void onResume() {
-            synchronized (mPauseLock) {
-                mPaused = false;
-                mPauseLock.notifyAll();
-            }
+    // Return false if a stage of the pipeline is still running, the cache
+    // directory is kept then as it may still be written to.
+    private boolean cleanUp() {
+        boolean stopped = true;
+        if (mPipeline != null) {
+            stopped = mPipeline.stop();
+            mPipeline = null;
         }
 
-        public void cleanUp() {
-            if (mVideoCachedDir != null) deleteDir(mVideoCachedDir);
+        if (mSegmentStore != null) {
+            mSegmentStore.close();
+            mSegmentStore = null;
         }
 
-        private void muxerH264ToMp4(File h264File, File mp4File) {
-            try {
-                H264TrackImpl h264Track = new H264TrackImpl(new FileDataSourceImpl(h264File.getAbsolutePath()));
-                Movie m = new Movie();
-                m.addTrack(h264Track);
+        mEvents.clear();
 
-                Container out = new DefaultMp4Builder().build(m);
+        if (!stopped) return false;
+        if (mVideoCachedDir != null) deleteDir(mVideoCachedDir);
+        return true;
+    }
 
-                FileOutputStream fos = new FileOutputStream(mp4File);
-                FileChannel fc = fos.getChannel();
-                out.writeContainer(fc);
-                fos.close();
+    private void broadcastNewVideoReady(File mp4File) {
+        // Send out 'newvideoready' event
+        JSONObject out = new JSONObject();
+        try {
+            out.put("eventName", EVENT_NEW_VIDEO_READY);
+            JSONObject path = new JSONObject();
+            path.put("absolutePath", mp4File.getAbsolutePath());
+            out.put("data", path);
 
-            } catch (IOException e) {
-                Log.e(TAG, e.toString());
-            }
+            // A page which falls behind skips to the latest segment.
+            mEvents.publish(EVENT_NEW_VIDEO_READY, out.toString());
+        } catch (JSONException e) {
+            printErrorMessage(e);
         }
+    }
 
-        private boolean deleteDir(File dir) {
-            if (dir.isDirectory()) {
-                String[] children = dir.list();
-                for (int i = 0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
+    private boolean deleteDir(File dir) {
+        if (dir.isDirectory()) {
+            String[] children = dir.list();
+            for (int i = 0; i < children.length; i++) {
+                boolean success = deleteDir(new File(dir, children[i]));
+                if (!success) {
+                    return false;
                 }
             }
-            return dir.delete();
         }
-
+        return dir.delete();
     }
 }
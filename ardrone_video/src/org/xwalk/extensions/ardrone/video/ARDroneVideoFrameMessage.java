@@ -0,0 +1,99 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.nio.ByteBuffer;
+
+import org.xwalk.extensions.common.BinaryMessageWriter;
+
+/*
+ * Build the 'newframe' event of the live mode.
+ *
+ * By default it is JSON, the payload base64 encoded so it survives the
+ * string based message channel. The JSON envelope is written by hand into a
+ * reused StringBuilder instead of going through a JSONObject tree per frame.
+ *
+ * With the binaryFrames option on it is a binary message of type
+ * TYPE_NEWFRAME, whose payload is
+ *
+ *   frameNumber uint32, timestamp uint32, keyFrame uint8, width uint16,
+ *   height uint16, then the Annex B NAL units up to the end.
+ *
+ * That saves the base64 encoding and decoding, but is larger on the channel,
+ * see BinaryMessageWriter.
+ */
+public class ARDroneVideoFrameMessage {
+    // Binary message types of ardrone_video.js.
+    public static final int TYPE_NEWFRAME = 1;
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final boolean mBinary;
+    private final StringBuilder mBuilder;
+    private final BinaryMessageWriter mWriter;
+
+    public ARDroneVideoFrameMessage(boolean binary) {
+        mBinary = binary;
+        mBuilder = binary ? null : new StringBuilder(64 * 1024);
+        mWriter = binary ? new BinaryMessageWriter(64 * 1024) : null;
+    }
+
+    public String build(P264Frame frame) {
+        if (mBinary) return buildBinary(frame);
+
+        StringBuilder b = mBuilder;
+        b.setLength(0);
+        b.append("{\"eventName\":\"newframe\",\"data\":{\"frameNumber\":").append(frame.getFrameNumber());
+        b.append(",\"timestamp\":").append(frame.getTimestamp());
+        b.append(",\"keyFrame\":").append(frame.isStartFrame());
+        b.append(",\"width\":").append(frame.getDisplayWidth());
+        b.append(",\"height\":").append(frame.getDisplayHeight());
+        b.append(",\"nal\":\"");
+        appendBase64(b, frame.getPayload());
+        b.append("\"}}");
+        return b.toString();
+    }
+
+    private String buildBinary(P264Frame frame) {
+        return mWriter.begin()
+                .beginFrame(TYPE_NEWFRAME, BinaryMessageWriter.NO_CALL_ID)
+                .putInt((int) frame.getFrameNumber())
+                .putInt((int) frame.getTimestamp())
+                .putBoolean(frame.isStartFrame())
+                .putShort(frame.getDisplayWidth())
+                .putShort(frame.getDisplayHeight())
+                .putBytes(frame.getPayload())
+                .build();
+    }
+
+    private static void appendBase64(StringBuilder b, ByteBuffer data) {
+        int end = data.limit();
+        int i = data.position();
+        b.ensureCapacity(b.length() + (end - i + 2) / 3 * 4 + 8);
+
+        for (; i + 2 < end; i += 3) {
+            int bits = (data.get(i) & 0xff) << 16 | (data.get(i + 1) & 0xff) << 8 | (data.get(i + 2) & 0xff);
+            b.append(BASE64[bits >>> 18]);
+            b.append(BASE64[(bits >>> 12) & 0x3f]);
+            b.append(BASE64[(bits >>> 6) & 0x3f]);
+            b.append(BASE64[bits & 0x3f]);
+        }
+
+        int remaining = end - i;
+        if (remaining == 1) {
+            int bits = (data.get(i) & 0xff) << 16;
+            b.append(BASE64[bits >>> 18]);
+            b.append(BASE64[(bits >>> 12) & 0x3f]);
+            b.append("==");
+        } else if (remaining == 2) {
+            int bits = (data.get(i) & 0xff) << 16 | (data.get(i + 1) & 0xff) << 8;
+            b.append(BASE64[bits >>> 18]);
+            b.append(BASE64[(bits >>> 12) & 0x3f]);
+            b.append(BASE64[(bits >>> 6) & 0x3f]);
+            b.append('=');
+        }
+    }
+}
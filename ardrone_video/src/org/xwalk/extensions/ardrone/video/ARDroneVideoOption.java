@@ -4,8 +4,6 @@
 
 package org.xwalk.extensions.ardrone.video;
 
-import android.util.Log;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -18,6 +16,14 @@ public class ARDroneVideoOption {
     private long mBitrate;
     private ARDroneVideoCodec mCodec;
     private ARDroneVideoChannel mChannel;
+    private int mQueueSize;
+    private ARDroneVideoOverflowPolicy mOverflowPolicy;
+    private boolean mLive;
+    private boolean mBinaryFrames;
+    private int mCacheSlots;
+    private int mReceiveBufferSize;
+    private long mConnectTimeout;
+    private long mReadTimeout;
 
     public ARDroneVideoOption(JSONObject option) {
         try {
@@ -47,8 +53,34 @@ public class ARDroneVideoOption {
                 }
             }
             if (!found) mChannel = ARDroneVideoChannel.UNKNOWN;
+
+            // Pipeline options are optional, older pages do not send them.
+            mQueueSize = option.optInt("queueSize", 4);
+            if (mQueueSize < 1) mQueueSize = 1;
+
+            long overflowPolicy = option.optLong("overflowPolicy",
+                    ARDroneVideoOverflowPolicy.DROP_OLDEST_GOP.getValue());
+            found = false;
+            for (ARDroneVideoOverflowPolicy p : ARDroneVideoOverflowPolicy.values()) {
+                if (overflowPolicy == p.getValue()) {
+                    mOverflowPolicy = p;
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) mOverflowPolicy = ARDroneVideoOverflowPolicy.UNKNOWN;
+
+            mLive = option.optBoolean("live", false);
+            mBinaryFrames = option.optBoolean("binaryFrames", false);
+
+            mCacheSlots = option.optInt("cacheSlots", 4);
+            if (mCacheSlots < 2) mCacheSlots = 2;
+
+            mReceiveBufferSize = Math.max(option.optInt("receiveBufferSize", 256 * 1024), 0);
+            mConnectTimeout = Math.max(option.optLong("connectTimeout", 5000), 0);
+            mReadTimeout = Math.max(option.optLong("readTimeout", 0), 0);
         } catch (JSONException e) {
-            Log.e(TAG, e.toString());
+            ARDroneVideoLog.LOG.e(TAG, e.toString());
         }
     }
 
@@ -58,4 +90,12 @@ public class ARDroneVideoOption {
     public long bitrate() { return mBitrate; }
     public ARDroneVideoCodec codec() { return mCodec; }
     public ARDroneVideoChannel channel() { return mChannel; }
+    public int queueSize() { return mQueueSize; }
+    public ARDroneVideoOverflowPolicy overflowPolicy() { return mOverflowPolicy; }
+    public boolean live() { return mLive; }
+    public boolean binaryFrames() { return mBinaryFrames; }
+    public int cacheSlots() { return mCacheSlots; }
+    public int receiveBufferSize() { return mReceiveBufferSize; }
+    public long connectTimeout() { return mConnectTimeout; }
+    public long readTimeout() { return mReadTimeout; }
 }
@@ -0,0 +1,20 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+// The values must be alligned with the .js file
+public enum ARDroneVideoOverflowPolicy {
+    // Wait until the next stage catches up, the socket reader may stall.
+    BLOCK(1),
+    // Drop the oldest queued group of pictures to make room.
+    DROP_OLDEST_GOP(2),
+    // Drop incoming frames until the next IDR-Frame.
+    DROP_NON_IDR(3),
+    UNKNOWN(4);
+
+    private final int value;
+    private ARDroneVideoOverflowPolicy(int value) { this.value = value; }
+    public int getValue() { return value; }
+}
@@ -0,0 +1,339 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * The video pipeline, each stage runs on its own thread:
+ *
+ *   socket reader -> GOP assembler -> MP4 muxer -> event publisher
+ *
+ * or, in live mode, where each frame goes to the page as soon as it is read:
+ *
+ *   socket reader -> frame publisher
+ *
+ * Stages hand their output over through bounded VideoStageQueues, whose
+ * overflow policy decides what happens when a stage falls behind. With a
+ * dropping policy a slow muxer or page never stalls the socket reader.
+ *
+ * Segments are written into the slots of a VideoSegmentStore, a dropped
+ * segment gives its slot back to the store.
+ */
+public class ARDroneVideoPipeline {
+    private static final String TAG = "ARDroneVideoPipeline";
+
+    // The drone sends an IDR-Frame about every 30 frames.
+    private static final int FRAMES_PER_GOP = 30;
+
+    // How long stop() waits for all the stage threads, in milliseconds.
+    private static final long STOP_TIMEOUT = 2000;
+
+    public interface Listener {
+        // Called on the publisher thread.
+        void onSegmentReady(File segment);
+
+        // Called on the publisher thread in live mode, |frame| is only valid
+        // during the call.
+        void onFrameReady(P264Frame frame);
+    }
+
+    private final ARDroneVideoOption mOption;
+    private final VideoStreamChannel mStreamChannel;
+    private final VideoSegmentStore mSegmentStore;
+    private final Listener mListener;
+
+    private final ARDroneVideoStats mStats;
+    private final P264Decoder mDecoder;
+    private final ArrayBlockingQueue<P264Frame> mFreeFrames;
+    private final VideoStageQueue<P264Frame> mFrameQueue;
+    private final VideoStageQueue<P264Gop> mGopQueue;
+    private final VideoStageQueue<VideoSegmentStore.Segment> mSegmentQueue;
+
+    private final Object mPauseLock;
+    private boolean mPaused;
+    private volatile boolean mFinished;
+
+    private Thread[] mThreads;
+
+    public ARDroneVideoPipeline(ARDroneVideoOption option, VideoStreamChannel streamChannel,
+            VideoSegmentStore segmentStore, Listener listener) {
+        mOption = option;
+        mStreamChannel = streamChannel;
+        mSegmentStore = segmentStore;
+        mListener = listener;
+
+        mStats = new ARDroneVideoStats();
+        mDecoder = new P264Decoder();
+        final P264PayloadPool pool = mDecoder.payloadPool();
+        int queueSize = option.queueSize();
+        ARDroneVideoOverflowPolicy policy = option.overflowPolicy();
+
+        // The frame queue holds |queueSize| groups worth of frames, or only
+        // |queueSize| frames in live mode to keep the latency low. Plus one
+        // frame for the reader and one for its consumer.
+        int frameQueueSize = option.live() ? queueSize : queueSize * FRAMES_PER_GOP;
+        mFreeFrames = new ArrayBlockingQueue<P264Frame>(frameQueueSize + 2);
+        for (int i = 0; i < frameQueueSize + 2; i++) mFreeFrames.add(new P264Frame(pool));
+
+        mFrameQueue = new VideoStageQueue<P264Frame>(frameQueueSize, policy) {
+            @Override
+            protected boolean isKeyItem(P264Frame frame) {
+                return frame.isStartFrame();
+            }
+
+            @Override
+            protected void onDropped(P264Frame frame) {
+                mStats.onFramesDropped(1);
+                frame.discard();
+                mFreeFrames.offer(frame);
+            }
+        };
+
+        mGopQueue = new VideoStageQueue<P264Gop>(queueSize, policy) {
+            @Override
+            protected boolean isKeyItem(P264Gop gop) {
+                return true;
+            }
+
+            @Override
+            protected void onDropped(P264Gop gop) {
+                mStats.onFramesDropped(gop.frameCount());
+                gop.recycle();
+            }
+        };
+
+        mSegmentQueue = new VideoStageQueue<VideoSegmentStore.Segment>(queueSize, policy) {
+            @Override
+            protected boolean isKeyItem(VideoSegmentStore.Segment segment) {
+                return true;
+            }
+
+            @Override
+            protected void onDropped(VideoSegmentStore.Segment segment) {
+                mStats.onSegmentDropped();
+                mSegmentStore.release(segment);
+            }
+        };
+
+        mPauseLock = new Object();
+        mPaused = false;
+        mFinished = false;
+    }
+
+    public void start() {
+        if (mOption.live()) {
+            mThreads = new Thread[] {
+                new Thread(new ReaderRunnable(), "ARDroneVideoReader"),
+                new Thread(new FramePublisherRunnable(), "ARDroneVideoPublisher"),
+            };
+            for (Thread thread : mThreads) thread.start();
+            return;
+        }
+
+        mThreads = new Thread[] {
+            new Thread(new ReaderRunnable(), "ARDroneVideoReader"),
+            new Thread(new AssemblerRunnable(), "ARDroneVideoAssembler"),
+            new Thread(new MuxerRunnable(), "ARDroneVideoMuxer"),
+            new Thread(new PublisherRunnable(), "ARDroneVideoPublisher"),
+        };
+        for (Thread thread : mThreads) thread.start();
+    }
+
+    // Stop the stages and wait for their threads, so that nothing writes into
+    // the segment store afterwards. Return false if some did not end within
+    // STOP_TIMEOUT.
+    public boolean stop() {
+        mFinished = true;
+        onResume();
+
+        // Unblock the reader, which may sit in a socket read.
+        try {
+            mStreamChannel.close();
+        } catch (IOException e) {
+            ARDroneVideoLog.LOG.e(TAG, e.toString());
+        }
+
+        mFrameQueue.close();
+        mGopQueue.close();
+        mSegmentQueue.close();
+
+        if (mThreads == null) return true;
+        for (Thread thread : mThreads) thread.interrupt();
+
+        boolean stopped = true;
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        for (Thread thread : mThreads) {
+            try {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait > 0) thread.join(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                ARDroneVideoLog.LOG.w(TAG, thread.getName() + " did not stop");
+                stopped = false;
+            }
+        }
+        mThreads = null;
+        return stopped;
+    }
+
+    public ARDroneVideoStats stats() { return mStats; }
+
+    public void onPause() {
+        synchronized (mPauseLock) {
+            mPaused = true;
+        }
+    }
+
+    public void onResume() {
+        synchronized (mPauseLock) {
+            mPaused = false;
+            mPauseLock.notifyAll();
+        }
+    }
+
+    private void waitIfPaused() throws InterruptedException {
+        synchronized (mPauseLock) {
+            while (mPaused) mPauseLock.wait();
+        }
+    }
+
+    private class ReaderRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                P264StreamReader reader = new P264StreamReader(mStreamChannel, mDecoder.payloadPool());
+                while (!mFinished) {
+                    waitIfPaused();
+
+                    P264Frame frame = mFreeFrames.take();
+                    try {
+                        reader.readFrame(frame);
+                    } catch (IOException e) {
+                        mFreeFrames.offer(frame);
+                        throw e;
+                    }
+                    mStats.onFrameRead(frame, reader);
+                    mFrameQueue.offer(frame);
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            } catch (IOException e) {
+                if (!mFinished) ARDroneVideoLog.LOG.e(TAG, e.toString());
+            } catch (RuntimeException e) {
+                // A parser bug ends the stream, not the app.
+                ARDroneVideoLog.LOG.e(TAG, e.toString());
+            } finally {
+                mFrameQueue.close();
+            }
+        }
+    }
+
+    private class AssemblerRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                P264Frame frame;
+                while ((frame = mFrameQueue.take()) != null) {
+                    long startTime = System.nanoTime();
+                    P264Gop gop = mDecoder.pushFrame(frame, mOption.latency());
+                    mStats.assemble().recordNanos(System.nanoTime() - startTime);
+                    mFreeFrames.offer(frame);
+                    if (gop != null) mGopQueue.offer(gop);
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            } finally {
+                mDecoder.reset();
+                mGopQueue.close();
+            }
+        }
+    }
+
+    private class MuxerRunnable implements Runnable {
+        @Override
+        public void run() {
+            FragmentedMp4Muxer mp4Muxer = new FragmentedMp4Muxer(true);
+
+            try {
+                P264Gop gop;
+                while ((gop = mGopQueue.take()) != null) {
+                    long startTime = System.nanoTime();
+                    VideoSegmentStore.Segment segment = null;
+                    try {
+                        FileChannel channel = mSegmentStore.beginSegment();
+                        // Each file is played on its own by <video>, so it carries the init segment.
+                        if (mp4Muxer.writeFragment(gop, channel, true)) {
+                            segment = mSegmentStore.commitSegment();
+                        } else {
+                            mSegmentStore.abortSegment();
+                        }
+                    } catch (IOException e) {
+                        ARDroneVideoLog.LOG.e(TAG, e.toString());
+                        mSegmentStore.abortSegment();
+                    } finally {
+                        gop.recycle();
+                    }
+
+                    if (segment == null) continue;
+                    mStats.mux().recordNanos(System.nanoTime() - startTime);
+                    mStats.onSegmentWritten();
+                    mSegmentQueue.offer(segment);
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            } finally {
+                mSegmentQueue.close();
+            }
+        }
+    }
+
+    private class PublisherRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                VideoSegmentStore.Segment segment;
+                while ((segment = mSegmentQueue.take()) != null) {
+                    // Skip a segment whose slot has been reused meanwhile.
+                    if (!mSegmentStore.isCurrent(segment)) continue;
+
+                    long startTime = System.nanoTime();
+                    mListener.onSegmentReady(segment.file());
+                    mStats.publish().recordNanos(System.nanoTime() - startTime);
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            }
+        }
+    }
+
+    private class FramePublisherRunnable implements Runnable {
+        @Override
+        public void run() {
+            // A decoder can not start before the SPS/PPS of an IDR-Frame.
+            boolean started = false;
+            try {
+                P264Frame frame;
+                while ((frame = mFrameQueue.take()) != null) {
+                    if (started || frame.isStartFrame()) {
+                        started = true;
+                        long startTime = System.nanoTime();
+                        mListener.onFrameReady(frame);
+                        mStats.publish().recordNanos(System.nanoTime() - startTime);
+                    }
+                    frame.discard();
+                    mFreeFrames.offer(frame);
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Counters and per-stage latency histograms of a video pipeline, updated by
+ * the stage threads without allocating and read by the getStats command.
+ */
+public class ARDroneVideoStats {
+    // Time to parse a frame out of the stream, socket waits excluded.
+    private final VideoLatencyHistogram mParse = new VideoLatencyHistogram();
+    // Time to add a frame to the group being assembled.
+    private final VideoLatencyHistogram mAssemble = new VideoLatencyHistogram();
+    // Time to mux a group and write it to its segment file.
+    private final VideoLatencyHistogram mMux = new VideoLatencyHistogram();
+    // Time to hand a segment, or a frame in live mode, over to the page.
+    private final VideoLatencyHistogram mPublish = new VideoLatencyHistogram();
+
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mIdrFrames = new AtomicLong();
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mSegments = new AtomicLong();
+    private final AtomicLong mDroppedSegments = new AtomicLong();
+
+    // Copied from the P264StreamReader, which is only touched by the reader thread.
+    private volatile long mResyncs;
+    private volatile long mDroppedBytes;
+    private volatile long mResyncDroppedFrames;
+
+    public VideoLatencyHistogram parse() { return mParse; }
+    public VideoLatencyHistogram assemble() { return mAssemble; }
+    public VideoLatencyHistogram mux() { return mMux; }
+    public VideoLatencyHistogram publish() { return mPublish; }
+
+    public void onFrameRead(P264Frame frame, P264StreamReader reader) {
+        mFrames.incrementAndGet();
+        mBytes.addAndGet(frame.getPayloadLength());
+        if (frame.isStartFrame()) mIdrFrames.incrementAndGet();
+        mParse.recordNanos(reader.lastParseNanos());
+
+        mResyncs = reader.resyncs();
+        mDroppedBytes = reader.droppedBytes();
+        mResyncDroppedFrames = reader.droppedFrames();
+    }
+
+    public void onFramesDropped(int count) { mDroppedFrames.addAndGet(count); }
+    public void onSegmentWritten() { mSegments.incrementAndGet(); }
+    public void onSegmentDropped() { mDroppedSegments.incrementAndGet(); }
+
+    public JSONObject toJSON(VideoSegmentStore segmentStore) throws JSONException {
+        JSONObject out = new JSONObject();
+        out.put("frames", mFrames.get());
+        out.put("bytes", mBytes.get());
+        out.put("idrFrames", mIdrFrames.get());
+        out.put("droppedFrames", mDroppedFrames.get() + mResyncDroppedFrames);
+        out.put("resyncs", mResyncs);
+        out.put("droppedBytes", mDroppedBytes);
+        out.put("segments", mSegments.get());
+        out.put("droppedSegments", mDroppedSegments.get());
+
+        if (segmentStore != null) {
+            JSONObject cache = new JSONObject();
+            cache.put("slots", segmentStore.slotCount());
+            cache.put("occupancy", segmentStore.occupancy());
+            cache.put("hits", segmentStore.hits());
+            cache.put("evictions", segmentStore.evictions());
+            out.put("cache", cache);
+        }
+
+        // All durations are in microseconds.
+        JSONObject latency = new JSONObject();
+        latency.put("parse", mParse.toJSON());
+        latency.put("assemble", mAssemble.toJSON());
+        latency.put("mux", mMux.toJSON());
+        latency.put("publish", mPublish.toJSON());
+        out.put("latency", latency);
+        return out;
+    }
+}
@@ -0,0 +1,498 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/*
+ * Turn P264 groups of pictures into fragmented MP4 (ISO/IEC 14496-12) in memory.
+ *
+ * The init segment (ftyp + moov) is built once from the SPS/PPS found in
+ * the first IDR-Frame, every group then only costs a small moof + mdat
+ * header. The Annex B start codes of the payloads are rewritten in place
+ * into AVC length prefixes, so sample data is never copied.
+ */
+public class FragmentedMp4Muxer {
+    private static final String TAG = "FragmentedMp4Muxer";
+
+    // PaVE timestamps are in milliseconds.
+    private static final int TIMESCALE = 1000;
+    private static final int TRACK_ID = 1;
+    private static final int DEFAULT_SAMPLE_DURATION = 33;
+
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+
+    // trun flags: data-offset, sample-duration, sample-size and sample-flags present.
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // tfhd flags: default-base-is-moof.
+    private static final int TFHD_FLAGS = 0x020000;
+    // sample_depends_on = 2 for sync samples, 1 + sample_is_non_sync_sample otherwise.
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int MOOF_SIZE_WITHOUT_SAMPLES = 88;
+    private static final int TRUN_BYTES_PER_SAMPLE = 12;
+    private static final int MDAT_HEADER_SIZE = 8;
+
+    private static final int[] UNITY_MATRIX = {
+        0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000
+    };
+
+    private static final int FTYP = fourcc("ftyp");
+    private static final int MOOV = fourcc("moov");
+    private static final int MVHD = fourcc("mvhd");
+    private static final int TRAK = fourcc("trak");
+    private static final int TKHD = fourcc("tkhd");
+    private static final int MDIA = fourcc("mdia");
+    private static final int MDHD = fourcc("mdhd");
+    private static final int HDLR = fourcc("hdlr");
+    private static final int MINF = fourcc("minf");
+    private static final int VMHD = fourcc("vmhd");
+    private static final int DINF = fourcc("dinf");
+    private static final int DREF = fourcc("dref");
+    private static final int URL  = fourcc("url ");
+    private static final int STBL = fourcc("stbl");
+    private static final int STSD = fourcc("stsd");
+    private static final int AVC1 = fourcc("avc1");
+    private static final int AVCC = fourcc("avcC");
+    private static final int STTS = fourcc("stts");
+    private static final int STSC = fourcc("stsc");
+    private static final int STSZ = fourcc("stsz");
+    private static final int STCO = fourcc("stco");
+    private static final int MVEX = fourcc("mvex");
+    private static final int TREX = fourcc("trex");
+    private static final int MOOF = fourcc("moof");
+    private static final int MFHD = fourcc("mfhd");
+    private static final int TRAF = fourcc("traf");
+    private static final int TFHD = fourcc("tfhd");
+    private static final int TFDT = fourcc("tfdt");
+    private static final int TRUN = fourcc("trun");
+    private static final int MDAT = fourcc("mdat");
+    private static final int ISOM = fourcc("isom");
+    private static final int ISO5 = fourcc("iso5");
+    private static final int MP41 = fourcc("mp41");
+    private static final int VIDE = fourcc("vide");
+
+    private final boolean mSelfContained;
+
+    private byte[] mSps;
+    private byte[] mPps;
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mInitSegment;
+
+    private ByteBuffer mFragmentHeader;
+    private ByteBuffer[] mWriteBuffers;
+    private int mSequenceNumber;
+    private long mFirstTimestamp;
+
+    // When |selfContained| is true, every fragment starts at decode time 0
+    // so that init segment + fragment can be played as a file on its own.
+    public FragmentedMp4Muxer(boolean selfContained) {
+        mSelfContained = selfContained;
+        mFragmentHeader = ByteBuffer.allocate(MOOF_SIZE_WITHOUT_SAMPLES + MDAT_HEADER_SIZE
+                + 64 * TRUN_BYTES_PER_SAMPLE);
+        mWriteBuffers = new ByteBuffer[64];
+        mSequenceNumber = 0;
+        mFirstTimestamp = -1;
+    }
+
+    // The ftyp + moov boxes, null until the SPS/PPS have been seen.
+    public ByteBuffer initSegment() {
+        return mInitSegment == null ? null : mInitSegment.duplicate();
+    }
+
+    // Write the moof + mdat of |gop| to |channel|, preceded by the init
+    // segment if |withInitSegment| is set. The frames of |gop| are rewritten
+    // into AVC samples. Return false if no SPS/PPS is known yet.
+    public boolean writeFragment(P264Gop gop, GatheringByteChannel channel,
+            boolean withInitSegment) throws IOException {
+        int frameCount = gop.frameCount();
+        for (int i = 0; i < frameCount; i++) {
+            ByteBuffer sample = toSample(gop.frameAt(i));
+            if (sample != gop.frameAt(i)) gop.replaceFrameAt(i, sample);
+        }
+
+        if (mSps == null || mPps == null) {
+            ARDroneVideoLog.LOG.e(TAG, "No SPS/PPS received yet, drop the group.");
+            return false;
+        }
+
+        if (mInitSegment == null || gop.width() != mWidth || gop.height() != mHeight) {
+            mWidth = gop.width();
+            mHeight = gop.height();
+            mInitSegment = buildInitSegment();
+        }
+
+        long dataSize = buildFragmentHeader(gop);
+
+        if (mWriteBuffers.length < frameCount + 2) {
+            mWriteBuffers = new ByteBuffer[Math.max(frameCount + 2, mWriteBuffers.length * 2)];
+        }
+        int count = 0;
+        if (withInitSegment) {
+            mInitSegment.rewind();
+            mWriteBuffers[count++] = mInitSegment;
+            dataSize += mInitSegment.remaining();
+        }
+        mWriteBuffers[count++] = mFragmentHeader;
+        for (int i = 0; i < frameCount; i++) {
+            mWriteBuffers[count++] = gop.frameAt(i);
+        }
+
+        while (dataSize > 0) {
+            dataSize -= channel.write(mWriteBuffers, 0, count);
+        }
+
+        Arrays.fill(mWriteBuffers, 0, count, null);
+        return true;
+    }
+
+    // Build moof + mdat header into mFragmentHeader, return the number of
+    // bytes of the whole fragment.
+    private long buildFragmentHeader(P264Gop gop) {
+        int frameCount = gop.frameCount();
+        int moofSize = MOOF_SIZE_WITHOUT_SAMPLES + frameCount * TRUN_BYTES_PER_SAMPLE;
+        if (mFragmentHeader.capacity() < moofSize + MDAT_HEADER_SIZE) {
+            mFragmentHeader = ByteBuffer.allocate((moofSize + MDAT_HEADER_SIZE) * 2);
+        }
+
+        long firstTimestamp = gop.timestampAt(0);
+        if (mFirstTimestamp < 0) mFirstTimestamp = firstTimestamp;
+        long baseDecodeTime = mSelfContained ? 0 : firstTimestamp - mFirstTimestamp;
+
+        ByteBuffer b = mFragmentHeader;
+        b.clear();
+
+        int moof = beginBox(b, MOOF);
+        int mfhd = beginFullBox(b, MFHD, 0, 0);
+        b.putInt(++mSequenceNumber);
+        endBox(b, mfhd);
+
+        int traf = beginBox(b, TRAF);
+        int tfhd = beginFullBox(b, TFHD, 0, TFHD_FLAGS);
+        b.putInt(TRACK_ID);
+        endBox(b, tfhd);
+
+        int tfdt = beginFullBox(b, TFDT, 1, 0);
+        b.putLong(baseDecodeTime);
+        endBox(b, tfdt);
+
+        int trun = beginFullBox(b, TRUN, 0, TRUN_FLAGS);
+        b.putInt(frameCount);
+        b.putInt(moofSize + MDAT_HEADER_SIZE);
+        long dataSize = 0;
+        int lastDuration = DEFAULT_SAMPLE_DURATION;
+        for (int i = 0; i < frameCount; i++) {
+            long next = i + 1 < frameCount ? gop.timestampAt(i + 1) : gop.endTimestamp();
+            int duration = next > gop.timestampAt(i) ? (int) (next - gop.timestampAt(i)) : lastDuration;
+            lastDuration = duration;
+
+            int size = gop.frameAt(i).remaining();
+            dataSize += size;
+
+            b.putInt(duration);
+            b.putInt(size);
+            b.putInt(gop.isKeyFrameAt(i) ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        endBox(b, trun);
+        endBox(b, traf);
+        endBox(b, moof);
+
+        b.putInt((int) (MDAT_HEADER_SIZE + dataSize));
+        b.putInt(MDAT);
+        b.flip();
+
+        return b.remaining() + dataSize;
+    }
+
+    private ByteBuffer buildInitSegment() {
+        ByteBuffer b = ByteBuffer.allocate(1024 + mSps.length + mPps.length);
+
+        int ftyp = beginBox(b, FTYP);
+        b.putInt(ISOM);
+        b.putInt(0x200);
+        b.putInt(ISOM);
+        b.putInt(ISO5);
+        b.putInt(AVC1);
+        b.putInt(MP41);
+        endBox(b, ftyp);
+
+        int moov = beginBox(b, MOOV);
+
+        int mvhd = beginFullBox(b, MVHD, 0, 0);
+        b.putInt(0);                // creation_time
+        b.putInt(0);                // modification_time
+        b.putInt(TIMESCALE);
+        b.putInt(0);                // duration, unknown for fragmented files
+        b.putInt(0x00010000);       // rate 1.0
+        b.putShort((short) 0x0100); // volume 1.0
+        putZeros(b, 2 + 8);
+        putMatrix(b);
+        putZeros(b, 24);            // pre_defined
+        b.putInt(TRACK_ID + 1);     // next_track_ID
+        endBox(b, mvhd);
+
+        int trak = beginBox(b, TRAK);
+        int tkhd = beginFullBox(b, TKHD, 0, 0x000003); // enabled, in movie
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(TRACK_ID);
+        b.putInt(0);
+        b.putInt(0);                // duration
+        putZeros(b, 8);
+        b.putShort((short) 0);      // layer
+        b.putShort((short) 0);      // alternate_group
+        b.putShort((short) 0);      // volume, 0 for video
+        b.putShort((short) 0);
+        putMatrix(b);
+        b.putInt(mWidth << 16);
+        b.putInt(mHeight << 16);
+        endBox(b, tkhd);
+
+        int mdia = beginBox(b, MDIA);
+        int mdhd = beginFullBox(b, MDHD, 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(TIMESCALE);
+        b.putInt(0);
+        b.putShort((short) 0x55c4); // language 'und'
+        b.putShort((short) 0);
+        endBox(b, mdhd);
+
+        int hdlr = beginFullBox(b, HDLR, 0, 0);
+        b.putInt(0);
+        b.putInt(VIDE);
+        putZeros(b, 12);
+        putCString(b, "VideoHandler");
+        endBox(b, hdlr);
+
+        int minf = beginBox(b, MINF);
+        int vmhd = beginFullBox(b, VMHD, 0, 1);
+        putZeros(b, 8);             // graphicsmode, opcolor
+        endBox(b, vmhd);
+
+        int dinf = beginBox(b, DINF);
+        int dref = beginFullBox(b, DREF, 0, 0);
+        b.putInt(1);
+        int url = beginFullBox(b, URL, 0, 1); // media data in the same file
+        endBox(b, url);
+        endBox(b, dref);
+        endBox(b, dinf);
+
+        int stbl = beginBox(b, STBL);
+        int stsd = beginFullBox(b, STSD, 0, 0);
+        b.putInt(1);
+        int avc1 = beginBox(b, AVC1);
+        putZeros(b, 6);
+        b.putShort((short) 1);      // data_reference_index
+        putZeros(b, 16);
+        b.putShort((short) mWidth);
+        b.putShort((short) mHeight);
+        b.putInt(0x00480000);       // 72 dpi
+        b.putInt(0x00480000);
+        b.putInt(0);
+        b.putShort((short) 1);      // frame_count
+        putZeros(b, 32);            // compressorname
+        b.putShort((short) 0x0018); // depth
+        b.putShort((short) -1);
+
+        int avcc = beginBox(b, AVCC);
+        b.put((byte) 1);            // configurationVersion
+        b.put(mSps[1]);             // AVCProfileIndication
+        b.put(mSps[2]);             // profile_compatibility
+        b.put(mSps[3]);             // AVCLevelIndication
+        b.put((byte) 0xff);         // lengthSizeMinusOne = 3
+        b.put((byte) 0xe1);         // one SPS
+        b.putShort((short) mSps.length);
+        b.put(mSps);
+        b.put((byte) 1);            // one PPS
+        b.putShort((short) mPps.length);
+        b.put(mPps);
+        endBox(b, avcc);
+        endBox(b, avc1);
+        endBox(b, stsd);
+
+        // Empty sample tables, samples are described by the fragments.
+        int stts = beginFullBox(b, STTS, 0, 0);
+        b.putInt(0);
+        endBox(b, stts);
+        int stsc = beginFullBox(b, STSC, 0, 0);
+        b.putInt(0);
+        endBox(b, stsc);
+        int stsz = beginFullBox(b, STSZ, 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        endBox(b, stsz);
+        int stco = beginFullBox(b, STCO, 0, 0);
+        b.putInt(0);
+        endBox(b, stco);
+
+        endBox(b, stbl);
+        endBox(b, minf);
+        endBox(b, mdia);
+        endBox(b, trak);
+
+        int mvex = beginBox(b, MVEX);
+        int trex = beginFullBox(b, TREX, 0, 0);
+        b.putInt(TRACK_ID);
+        b.putInt(1);                // default_sample_description_index
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        endBox(b, trex);
+        endBox(b, mvex);
+
+        endBox(b, moov);
+        b.flip();
+        return b.asReadOnlyBuffer();
+    }
+
+    // Rewrite the Annex B payload in |frame| into length-prefixed NAL units.
+    // Leading SPS/PPS units are remembered for the init segment and skipped.
+    // The rewrite happens in place when every NAL unit has a 4-byte start
+    // code, which is what the drone sends, otherwise a new buffer is returned.
+    private ByteBuffer toSample(ByteBuffer frame) {
+        int limit = frame.limit();
+        int sampleStart = frame.position();
+        boolean inPlace = true;
+        boolean leading = true;
+
+        // First pass: pick up the parameter sets and check the start codes.
+        int nalStart = findStartCode(frame, sampleStart, limit);
+        while (nalStart >= 0) {
+            int codeEnd = nalStart + 3;
+            int nextStart = findStartCode(frame, codeEnd, limit);
+            int nalEnd = nalEnd(frame, codeEnd, nextStart, limit);
+
+            int type = codeEnd < limit ? frame.get(codeEnd) & 0x1f : 0;
+            if (leading && type == NAL_TYPE_SPS) {
+                if (!sameBytes(frame, codeEnd, nalEnd, mSps)) {
+                    mSps = copyBytes(frame, codeEnd, nalEnd);
+                    mInitSegment = null;
+                }
+                sampleStart = nalEnd;
+            } else if (leading && type == NAL_TYPE_PPS) {
+                if (!sameBytes(frame, codeEnd, nalEnd, mPps)) {
+                    mPps = copyBytes(frame, codeEnd, nalEnd);
+                    mInitSegment = null;
+                }
+                sampleStart = nalEnd;
+            } else {
+                leading = false;
+                // A 4-byte start code is a zero byte followed by a 3-byte one.
+                if (nalStart <= sampleStart || frame.get(nalStart - 1) != 0) inPlace = false;
+            }
+            nalStart = nextStart;
+        }
+
+        if (!inPlace) return copyToSample(frame, sampleStart, limit);
+
+        // Second pass: overwrite each 4-byte start code with the NAL unit length.
+        nalStart = findStartCode(frame, sampleStart, limit);
+        while (nalStart >= 0) {
+            int codeEnd = nalStart + 3;
+            int nextStart = findStartCode(frame, codeEnd, limit);
+            frame.putInt(nalStart - 1, nalEnd(frame, codeEnd, nextStart, limit) - codeEnd);
+            nalStart = nextStart;
+        }
+
+        frame.position(sampleStart);
+        return frame;
+    }
+
+    // The zero byte of a following 4-byte start code is not part of the NAL unit.
+    private static int nalEnd(ByteBuffer b, int codeEnd, int nextStart, int limit) {
+        if (nextStart < 0) return limit;
+        if (nextStart > codeEnd && b.get(nextStart - 1) == 0) return nextStart - 1;
+        return nextStart;
+    }
+
+    private static boolean sameBytes(ByteBuffer b, int from, int to, byte[] bytes) {
+        if (bytes == null || bytes.length != to - from) return false;
+        for (int i = 0; i < bytes.length; i++) {
+            if (b.get(from + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private static byte[] copyBytes(ByteBuffer b, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = b.get(from + i);
+        return bytes;
+    }
+
+    // Slow path of toSample(), rebuild the sample from scratch.
+    private ByteBuffer copyToSample(ByteBuffer frame, int start, int limit) {
+        ByteBuffer sample = ByteBuffer.allocate((limit - start) * 4 / 3 + 16);
+        int nalStart = findStartCode(frame, start, limit);
+        while (nalStart >= 0) {
+            int codeEnd = nalStart + 3;
+            int nextStart = findStartCode(frame, codeEnd, limit);
+            int nalEnd = nextStart < 0 ? limit : nextStart;
+            // Trailing zeros belong to the next start code.
+            while (nalEnd > codeEnd && frame.get(nalEnd - 1) == 0) --nalEnd;
+            if (nalEnd > codeEnd) {
+                ByteBuffer src = frame.duplicate();
+                src.limit(nalEnd).position(codeEnd);
+                sample.putInt(nalEnd - codeEnd);
+                sample.put(src);
+            }
+            nalStart = nextStart;
+        }
+        sample.flip();
+        return sample;
+    }
+
+    // Return the index of the next 00 00 01 sequence in [from, limit), -1 if none.
+    private static int findStartCode(ByteBuffer b, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((b.get(i + 2) & 0xff) > 1) {
+                i += 2;
+            } else if (b.get(i + 2) == 1 && b.get(i + 1) == 0 && b.get(i) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int beginBox(ByteBuffer b, int type) {
+        int start = b.position();
+        b.putInt(0);
+        b.putInt(type);
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer b, int type, int version, int flags) {
+        int start = beginBox(b, type);
+        b.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        for (int value : UNITY_MATRIX) b.putInt(value);
+    }
+
+    private static void putZeros(ByteBuffer b, int count) {
+        for (int i = 0; i < count; i++) b.put((byte) 0);
+    }
+
+    private static void putCString(ByteBuffer b, String s) {
+        for (int i = 0; i < s.length(); i++) b.put((byte) s.charAt(i));
+        b.put((byte) 0);
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+}
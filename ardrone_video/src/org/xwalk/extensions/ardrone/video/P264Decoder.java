@@ -4,62 +4,81 @@
 
 package org.xwalk.extensions.ardrone.video;
 
-import android.util.Log;
-
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.Date;
 
 public class P264Decoder {
     private static final String TAG = "P264Decoder";
-    private byte[] mStartFrame;
+
+    // Enough buffers to hold a couple of 30-frame groups, a P264 frame from
+    // the drone is hardly bigger than 64KB.
+    private static final int POOL_MAX_BUFFERS = 64;
+    private static final int POOL_MAX_BUFFER_SIZE = 256 * 1024;
+
+    private final P264PayloadPool mPool;
+    // The group being assembled.
+    private P264Gop mCurrentGop;
     private Date mStartTime;
 
     public P264Decoder () {
-        mStartFrame = null;
+        mPool = new P264PayloadPool(POOL_MAX_BUFFERS, POOL_MAX_BUFFER_SIZE);
+        mCurrentGop = null;
         mStartTime = new Date();
     }
 
-    // Return buffer start with IDR-Frame, end with previous frame before second IDR-Frame
-    public byte[] readFrames(InputStream inputStream, long latency) throws IOException {
-        P264Frame frame = new P264Frame();
-        byte[] result = null;
-
-        frame.getNextH264RawFrame(inputStream);
+    // Feed the next parsed frame. Return the group closed by |frame|, which
+    // starts with an IDR-Frame and ends with the frame before the IDR-Frame
+    // closing it, or null while the group is still open. The payload of
+    // |frame| is either taken over or released, the caller must recycle()
+    // the result.
+    public P264Gop pushFrame(P264Frame frame, long latency) {
+        if (frame.getPayload() == null) return null;
 
-        // Check whether it is first-time reading.
-        if (mStartFrame == null) {
-            if (!frame.isStartFrame()) return null;
+        // Wait for the very first IDR-Frame.
+        if (mCurrentGop == null) {
+            if (!frame.isStartFrame()) {
+                frame.discard();
+                return null;
+            }
 
-            mStartFrame = frame.getPayload().clone();
-            result = mStartFrame.clone();
-        } else {
-            result = P264Frame.appendData(mStartFrame, frame.getPayload().clone());
+            mCurrentGop = new P264Gop(mPool);
+            mCurrentGop.append(frame);
+            return null;
         }
 
         // Appending P-Frames until meet next IDR-Frame
-        while (true) {
-            frame.getNextH264RawFrame(inputStream);
-            if (!frame.isStartFrame()) {
-                result = P264Frame.appendData(result, frame.getPayload().clone());
-                continue;
-            }
-
-            mStartFrame = frame.getPayload().clone();
+        if (!frame.isStartFrame()) {
+            mCurrentGop.append(frame);
+            return null;
+        }
 
-            // Based on testing, two IDR-Frames duration always bigger than 100ms.
-            if (latency < 100) {
-                break;
-            } else {
-                Date currentTime = new Date();
-                if (currentTime.getTime() - mStartTime.getTime() > latency) {
-                    mStartTime = currentTime;
-                    break;
-                }
+        // Based on testing, two IDR-Frames duration always bigger than 100ms.
+        boolean closeGroup = latency < 100;
+        if (!closeGroup) {
+            Date currentTime = new Date();
+            if (currentTime.getTime() - mStartTime.getTime() > latency) {
+                mStartTime = currentTime;
+                closeGroup = true;
             }
         }
 
+        if (!closeGroup) {
+            // Keep the IDR-Frame inside the buffer, the following P-Frames refer to it.
+            mCurrentGop.append(frame);
+            return null;
+        }
+
+        P264Gop result = mCurrentGop;
+        result.setEndTimestamp(frame.getTimestamp());
+        mCurrentGop = new P264Gop(mPool);
+        mCurrentGop.append(frame);
         return result;
     }
 
+    // Give the buffers of the group being assembled back to the pool.
+    public void reset() {
+        if (mCurrentGop != null) mCurrentGop.recycle();
+        mCurrentGop = null;
+    }
+
+    public P264PayloadPool payloadPool() { return mPool; }
 }
@@ -4,12 +4,7 @@
 
 package org.xwalk.extensions.ardrone.video;
 
-import android.util.Log;
-
-import java.io.ByteArrayOutputStream;
-import java.io.EOFException;
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /*
  * The PaVE header defination can be found at
@@ -18,9 +13,35 @@ import java.io.InputStream;
 public class P264Frame {
     private static final String TAG = "P264Frame";
 
-    private byte[] mPayload;
+    // Offsets of the PaVE header fields, all values are little-endian.
+    private static final int OFFSET_PAYLOAD_SIZE = 8;
+    private static final int OFFSET_ENCODED_WIDTH = 12;
+    private static final int OFFSET_ENCODED_HEIGHT = 14;
+    private static final int OFFSET_DISPLAY_WIDTH = 16;
+    private static final int OFFSET_DISPLAY_HEIGHT = 18;
+    private static final int OFFSET_FRAME_NUMBER = 20;
+    private static final int OFFSET_TIMESTAMP = 24;
+    private static final int OFFSET_FRAME_TYPE = 30;
+    private static final int OFFSET_SPS_SIZE = 44;
+    private static final int OFFSET_PPS_SIZE = 45;
+
+    // Smallest header holding all the fields we need.
+    static final int MIN_HEADER_SIZE = OFFSET_FRAME_TYPE + 1;
+
+    private final P264PayloadPool mPool;
+
+    private ByteBuffer mPayload;
     private int mPayloadLength;
     private byte mFrameType;
+    private int mHeaderSize;
+    private int mEncodedWidth;
+    private int mEncodedHeight;
+    private int mDisplayWidth;
+    private int mDisplayHeight;
+    private long mFrameNumber;
+    private long mTimestamp;
+    private int mSpsSize;
+    private int mPpsSize;
 
     private enum P264FrameType {
         UNKNOWN,
@@ -46,7 +67,10 @@ public class P264Frame {
         }
     };
 
-    public P264Frame() {
+    // Frames are filled by P264StreamReader with payloads taken from |pool|,
+    // discard() or a P264Gop gives them back.
+    public P264Frame(P264PayloadPool pool) {
+        mPool = pool;
         mPayload = null;
         mPayloadLength = 0;
         mFrameType = P264FrameType.UNKNOWN.getValue();
@@ -56,93 +80,65 @@ public class P264Frame {
         return mFrameType == P264FrameType.IDR_FRAME.getValue();
     }
 
-    public byte[] getPayload() { return mPayload; }
+    // The returned buffer is positioned at 0 with its limit set to the payload length.
+    public ByteBuffer getPayload() { return mPayload; }
 
-    public boolean getNextH264RawFrame(InputStream inputStream) throws IOException {
-        // The PaVE header defination can be found at
-        // https://github.com/elliotwoods/ARDrone-GStreamer-test/blob/master/plugin/src/pave.h
-        //
-        // Reference code from https://github.com/bkw/node-dronestream/blob/master/lib/PaVEParser.js
-        byte[] bytes = new byte[4];
-        inputStream.read(bytes, 0, 4);
-        String signature = new String(bytes, "US-ASCII");
-        if (!signature.equals("PaVE")) {
-            Log.e(TAG, "Wrong signature: " + signature);
-            return false;
-        }
-
-        // Skip version(1) and video_codec(1)
-        inputStream.skip(2);
-
-        // header_size
-        bytes = readDesiredBytes(inputStream, 2);
-        int headerSize = unsignedIntBytes2Int(bytes);
-        Log.i(TAG, "Header size: " + headerSize);
-
-        // payload size
-        bytes = readDesiredBytes(inputStream, 4);
-        mPayloadLength = unsignedIntBytes2Int(bytes);
-        Log.i(TAG, "Payload size: " + mPayloadLength);
-
-        // Skip 18 bytes:
-        // encoded_stream_width 2
-        // encoded_stream_height 2
-        // display_width 2
-        // display_height 2
-        // frame_number 4
-        // timestamp 4
-        // total_chunks 1
-        // chunk_index 1
-        inputStream.skip(18);
-
-        // frame type
-        mFrameType = (byte)inputStream.read();
-        Log.i(TAG, "Frame type: " + mFrameType);
-
-        // bytes consumed so far: 4 + 2 + 2 + 4 + 18 + 1 = 31. Skip ahead.
-        inputStream.skip(headerSize - 31);
-
-        mPayload = readDesiredBytes(inputStream, mPayloadLength);
-        return true;
+    // Give the payload, if not consumed, back to the pool.
+    public void discard() {
+        mPool.release(mPayload);
+        mPayload = null;
     }
 
-    private byte[] readDesiredBytes(InputStream is, int size) throws IOException {
-        int offset = 0;
-        int bytesRead = 0;
-        byte[] data = new byte[size];
-
-        while ((bytesRead = is.read(data, offset, data.length - offset)) != -1) {
-            offset += bytesRead;
-            if (offset >= data.length) {
-              return data;
-            }
-        }
-
-        throw new EOFException();
+    // Hand the ownership of the payload over to the caller.
+    public ByteBuffer detachPayload() {
+        ByteBuffer payload = mPayload;
+        mPayload = null;
+        return payload;
     }
-
-    private int unsignedIntBytes2Int(byte[] bytes) {
-        int res = 0;
-        if (bytes == null) {
-            return res;
-        }
-
-        for (int i = 0; i < bytes.length; i++) {
-            res = res | ((bytes[i] & 0xff) << i * 8);
+    public int getPayloadLength() { return mPayloadLength; }
+    public int getEncodedWidth() { return mEncodedWidth; }
+    public int getEncodedHeight() { return mEncodedHeight; }
+    public int getDisplayWidth() { return mDisplayWidth; }
+    public int getDisplayHeight() { return mDisplayHeight; }
+    public long getFrameNumber() { return mFrameNumber; }
+    // Milliseconds since the drone started streaming.
+    public long getTimestamp() { return mTimestamp; }
+    // Sizes of the SPS and PPS NAL units leading an IDR payload, 0 if unknown.
+    public int getSpsSize() { return mSpsSize; }
+    public int getPpsSize() { return mPpsSize; }
+
+    // Decode the header found at |offset| of |header|, P264StreamReader has
+    // already checked the signature and the sizes.
+    void parseHeader(ByteBuffer header, int offset, int headerSize) {
+        // Reference code from https://github.com/bkw/node-dronestream/blob/master/lib/PaVEParser.js
+        mHeaderSize = headerSize;
+        if (ARDroneVideoLog.TRACE) ARDroneVideoLog.LOG.trace(TAG, "Header size: ", mHeaderSize);
+
+        mPayloadLength = header.getInt(offset + OFFSET_PAYLOAD_SIZE);
+        if (ARDroneVideoLog.TRACE) ARDroneVideoLog.LOG.trace(TAG, "Payload size: ", mPayloadLength);
+
+        mEncodedWidth = header.getShort(offset + OFFSET_ENCODED_WIDTH) & 0xffff;
+        mEncodedHeight = header.getShort(offset + OFFSET_ENCODED_HEIGHT) & 0xffff;
+        mDisplayWidth = header.getShort(offset + OFFSET_DISPLAY_WIDTH) & 0xffff;
+        mDisplayHeight = header.getShort(offset + OFFSET_DISPLAY_HEIGHT) & 0xffff;
+        mFrameNumber = header.getInt(offset + OFFSET_FRAME_NUMBER) & 0xffffffffL;
+        mTimestamp = header.getInt(offset + OFFSET_TIMESTAMP) & 0xffffffffL;
+
+        mFrameType = header.get(offset + OFFSET_FRAME_TYPE);
+        if (ARDroneVideoLog.TRACE) ARDroneVideoLog.LOG.trace(TAG, "Frame type: ", mFrameType);
+
+        if (headerSize > OFFSET_PPS_SIZE) {
+            mSpsSize = header.get(offset + OFFSET_SPS_SIZE) & 0xff;
+            mPpsSize = header.get(offset + OFFSET_PPS_SIZE) & 0xff;
+        } else {
+            mSpsSize = 0;
+            mPpsSize = 0;
         }
-        return res;
     }
 
-    public static final byte[] appendData(byte[] arr1,byte[] arr2) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            if (arr1 != null && arr1.length != 0)
-                outputStream.write(arr1);
-            if (arr2 != null && arr2.length != 0)
-                outputStream.write(arr2);
-        } catch (IOException e) {
-            Log.e(TAG, e.toString());
-        }
-        return outputStream.toByteArray();
+    // Take the ownership of |payload|, positioned at 0 with its limit set to
+    // the payload length.
+    void setPayload(ByteBuffer payload) {
+        mPayload = payload;
     }
 }
@@ -0,0 +1,97 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.nio.ByteBuffer;
+
+/*
+ * A group of pictures, starting with an IDR-Frame.
+ *
+ * Frames are kept as a list of the pooled payload buffers they were parsed
+ * into, so appending a frame never copies any byte and the muxer writes the
+ * whole group with a single gathering write. recycle() gives the buffers
+ * back to the pool once the group has been consumed.
+ */
+public class P264Gop {
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final P264PayloadPool mPool;
+    private ByteBuffer[] mFrames;
+    private long[] mTimestamps;
+    private boolean[] mKeyFrames;
+    private int mFrameCount;
+
+    private int mWidth;
+    private int mHeight;
+    private long mEndTimestamp;
+
+    public P264Gop(P264PayloadPool pool) {
+        mPool = pool;
+        mFrames = new ByteBuffer[INITIAL_CAPACITY];
+        mTimestamps = new long[INITIAL_CAPACITY];
+        mKeyFrames = new boolean[INITIAL_CAPACITY];
+        mFrameCount = 0;
+        mEndTimestamp = -1;
+    }
+
+    // Take the ownership of the payload of |frame|, it is released together with this group.
+    public void append(P264Frame frame) {
+        if (mFrameCount == mFrames.length) grow();
+
+        if (mFrameCount == 0) {
+            mWidth = frame.getDisplayWidth();
+            mHeight = frame.getDisplayHeight();
+        }
+
+        mFrames[mFrameCount] = frame.detachPayload();
+        mTimestamps[mFrameCount] = frame.getTimestamp();
+        mKeyFrames[mFrameCount] = frame.isStartFrame();
+        ++mFrameCount;
+    }
+
+    private void grow() {
+        int capacity = mFrames.length * 2;
+
+        ByteBuffer[] frames = new ByteBuffer[capacity];
+        System.arraycopy(mFrames, 0, frames, 0, mFrameCount);
+        mFrames = frames;
+
+        long[] timestamps = new long[capacity];
+        System.arraycopy(mTimestamps, 0, timestamps, 0, mFrameCount);
+        mTimestamps = timestamps;
+
+        boolean[] keyFrames = new boolean[capacity];
+        System.arraycopy(mKeyFrames, 0, keyFrames, 0, mFrameCount);
+        mKeyFrames = keyFrames;
+    }
+
+    public int frameCount() { return mFrameCount; }
+    public int width() { return mWidth; }
+    public int height() { return mHeight; }
+
+    public ByteBuffer frameAt(int index) { return mFrames[index]; }
+    public long timestampAt(int index) { return mTimestamps[index]; }
+    public boolean isKeyFrameAt(int index) { return mKeyFrames[index]; }
+
+    // Swap the buffer of a frame, e.g. after it has been rewritten. The old
+    // buffer goes back to the pool.
+    public void replaceFrameAt(int index, ByteBuffer frame) {
+        mPool.release(mFrames[index]);
+        mFrames[index] = frame;
+    }
+
+    // Timestamp of the IDR-Frame following this group, -1 if unknown.
+    public long endTimestamp() { return mEndTimestamp; }
+    public void setEndTimestamp(long timestamp) { mEndTimestamp = timestamp; }
+
+    public void recycle() {
+        for (int i = 0; i < mFrameCount; i++) {
+            mPool.release(mFrames[i]);
+            mFrames[i] = null;
+        }
+        mFrameCount = 0;
+        mEndTimestamp = -1;
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * A bounded pool of payload buffers for P264 frames.
+ *
+ * Buffers handed out by acquire() are owned by the caller until they are
+ * given back with release(). At most mMaxBuffers idle buffers are retained,
+ * anything beyond that (or larger than mMaxBufferSize) is left to the GC,
+ * so the retained memory never exceeds mMaxBuffers * mMaxBufferSize.
+ */
+public class P264PayloadPool {
+    // Capacities are rounded up to this granularity so that a buffer can be
+    // reused for the next frame of roughly the same size.
+    private static final int CAPACITY_GRANULARITY = 16 * 1024;
+
+    private final int mMaxBuffers;
+    private final int mMaxBufferSize;
+    private final ArrayList<ByteBuffer> mIdleBuffers;
+
+    private long mAllocations;
+    private long mReuses;
+
+    public P264PayloadPool(int maxBuffers, int maxBufferSize) {
+        mMaxBuffers = maxBuffers;
+        mMaxBufferSize = maxBufferSize;
+        mIdleBuffers = new ArrayList<ByteBuffer>(maxBuffers);
+        mAllocations = 0;
+        mReuses = 0;
+    }
+
+    // Return a cleared buffer whose limit is |size| bytes.
+    public synchronized ByteBuffer acquire(int size) {
+        // Pick the smallest idle buffer which is big enough.
+        int best = -1;
+        for (int i = 0; i < mIdleBuffers.size(); i++) {
+            int capacity = mIdleBuffers.get(i).capacity();
+            if (capacity >= size && (best < 0 || capacity < mIdleBuffers.get(best).capacity())) {
+                best = i;
+            }
+        }
+
+        ByteBuffer buffer;
+        if (best >= 0) {
+            // Swap-remove to avoid shifting the list.
+            int last = mIdleBuffers.size() - 1;
+            buffer = mIdleBuffers.get(best);
+            mIdleBuffers.set(best, mIdleBuffers.get(last));
+            mIdleBuffers.remove(last);
+            ++mReuses;
+        } else {
+            int capacity = (size + CAPACITY_GRANULARITY - 1) / CAPACITY_GRANULARITY * CAPACITY_GRANULARITY;
+            buffer = ByteBuffer.allocate(Math.max(capacity, CAPACITY_GRANULARITY));
+            ++mAllocations;
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() > mMaxBufferSize) return;
+
+        if (mIdleBuffers.size() < mMaxBuffers) {
+            mIdleBuffers.add(buffer);
+        } else {
+            // Keep the bigger buffers, they satisfy more requests.
+            for (int i = 0; i < mIdleBuffers.size(); i++) {
+                if (mIdleBuffers.get(i).capacity() < buffer.capacity()) {
+                    mIdleBuffers.set(i, buffer);
+                    return;
+                }
+            }
+        }
+    }
+
+    public synchronized long allocations() { return mAllocations; }
+    public synchronized long reuses() { return mReuses; }
+}
@@ -0,0 +1,210 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+ * Split the PaVE stream of the drone into P264 frames.
+ *
+ * The stream is read in large chunks into a direct window buffer and the
+ * headers are parsed from there in place. A bad signature or an insane
+ * header_size or payload_size puts the reader in resync mode: the window is
+ * scanned for the next "PaVE" and everything before it is dropped, so a
+ * corrupted stream recovers on the next frame instead of needing a reconnect.
+ */
+public class P264StreamReader {
+    private static final String TAG = "P264StreamReader";
+
+    // "PaVE" read as a little-endian int.
+    private static final int PAVE_SIGNATURE = 0x45566150;
+
+    private static final int OFFSET_HEADER_SIZE = 6;
+    private static final int OFFSET_PAYLOAD_SIZE = 8;
+
+    // signature(4) + version(1) + video_codec(1) + header_size(2) + payload_size(4)
+    private static final int HEADER_PREFIX_SIZE = 12;
+    private static final int MAX_HEADER_SIZE = 256;
+    // A 720p IDR-Frame from the drone is far below this.
+    private static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel mChannel;
+    private final P264PayloadPool mPool;
+    // Unread bytes lie between position and limit.
+    private final ByteBuffer mWindow;
+
+    private boolean mResyncing;
+    private long mLastFrameNumber;
+    // Time spent waiting on the channel for the current frame.
+    private long mReadNanos;
+    private long mLastParseNanos;
+
+    private long mFrames;
+    private long mResyncs;
+    private long mDroppedBytes;
+    private long mDroppedFrames;
+
+    public P264StreamReader(ReadableByteChannel channel, P264PayloadPool pool) {
+        mChannel = channel;
+        mPool = pool;
+        mWindow = ByteBuffer.allocateDirect(WINDOW_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mWindow.limit(0);
+
+        mResyncing = false;
+        mLastFrameNumber = -1;
+        mLastParseNanos = 0;
+        mFrames = 0;
+        mResyncs = 0;
+        mDroppedBytes = 0;
+        mDroppedFrames = 0;
+    }
+
+    // Read the next frame into |frame|, skipping any garbage before it.
+    public void readFrame(P264Frame frame) throws IOException {
+        long startTime = System.nanoTime();
+        mReadNanos = 0;
+        while (true) {
+            fill(HEADER_PREFIX_SIZE);
+            int start = mWindow.position();
+            if (mWindow.getInt(start) != PAVE_SIGNATURE) {
+                resync();
+                continue;
+            }
+
+            int headerSize = mWindow.getShort(start + OFFSET_HEADER_SIZE) & 0xffff;
+            int payloadSize = mWindow.getInt(start + OFFSET_PAYLOAD_SIZE);
+            if (headerSize < P264Frame.MIN_HEADER_SIZE || headerSize > MAX_HEADER_SIZE
+                    || payloadSize <= 0 || payloadSize > MAX_PAYLOAD_SIZE) {
+                // Most likely "PaVE" inside a payload, look for the next one.
+                resync();
+                continue;
+            }
+
+            // Filling may compact the window, which moves the header.
+            fill(headerSize);
+            start = mWindow.position();
+            frame.parseHeader(mWindow, start, headerSize);
+            mWindow.position(start + headerSize);
+
+            ByteBuffer payload = mPool.acquire(payloadSize);
+            try {
+                read(payload);
+            } catch (IOException e) {
+                mPool.release(payload);
+                throw e;
+            }
+            payload.rewind();
+            frame.setPayload(payload);
+
+            ++mFrames;
+            if (mResyncing) {
+                mResyncing = false;
+                if (mLastFrameNumber >= 0 && frame.getFrameNumber() > mLastFrameNumber) {
+                    mDroppedFrames += frame.getFrameNumber() - mLastFrameNumber - 1;
+                }
+                ARDroneVideoLog.LOG.w(TAG, "Resynchronized at frame " + frame.getFrameNumber()
+                        + ", dropped " + mDroppedBytes + " bytes and " + mDroppedFrames + " frames so far");
+            }
+            mLastFrameNumber = frame.getFrameNumber();
+            mLastParseNanos = System.nanoTime() - startTime - mReadNanos;
+            return;
+        }
+    }
+
+    // Drop bytes up to the next possible signature, at least one.
+    private void resync() {
+        if (!mResyncing) {
+            mResyncing = true;
+            ++mResyncs;
+            ARDroneVideoLog.LOG.w(TAG, "Lost PaVE sync after frame " + mLastFrameNumber);
+        }
+
+        // Boyer-Moore-Horspool over the window. The four signature bytes
+        // are distinct, so the shift only depends on the last byte compared.
+        int start = mWindow.position();
+        int end = mWindow.limit();
+        int i = start + 1;
+        while (i + 3 < end) {
+            switch (mWindow.get(i + 3)) {
+                case 'E':
+                    if (mWindow.getInt(i) == PAVE_SIGNATURE) {
+                        mDroppedBytes += i - start;
+                        mWindow.position(i);
+                        return;
+                    }
+                    i += 4;
+                    break;
+                case 'V':
+                    i += 1;
+                    break;
+                case 'a':
+                    i += 2;
+                    break;
+                case 'P':
+                    i += 3;
+                    break;
+                default:
+                    i += 4;
+                    break;
+            }
+        }
+
+        // Not found, keep the tail which may hold the start of a signature.
+        i = Math.max(start + 1, Math.min(i, end - 3));
+        mDroppedBytes += i - start;
+        mWindow.position(i);
+    }
+
+    // Make at least |size| bytes available in the window.
+    private void fill(int size) throws IOException {
+        if (mWindow.remaining() >= size) return;
+
+        mWindow.compact();
+        try {
+            while (mWindow.position() < size) {
+                readChannel(mWindow);
+            }
+        } finally {
+            mWindow.flip();
+        }
+    }
+
+    // Fill |dst| up to its limit, from the window first and then straight
+    // from the channel.
+    private void read(ByteBuffer dst) throws IOException {
+        int limit = mWindow.limit();
+        if (mWindow.remaining() > dst.remaining()) {
+            mWindow.limit(mWindow.position() + dst.remaining());
+        }
+        dst.put(mWindow);
+        mWindow.limit(limit);
+
+        while (dst.hasRemaining()) {
+            readChannel(dst);
+        }
+    }
+
+    private void readChannel(ByteBuffer dst) throws IOException {
+        long startTime = System.nanoTime();
+        int bytesRead = mChannel.read(dst);
+        mReadNanos += System.nanoTime() - startTime;
+        if (bytesRead == -1) throw new EOFException();
+    }
+
+    public long frames() { return mFrames; }
+    // Time the last frame took to parse, waits on the channel excluded.
+    public long lastParseNanos() { return mLastParseNanos; }
+    public long resyncs() { return mResyncs; }
+    // Garbage skipped while looking for a signature.
+    public long droppedBytes() { return mDroppedBytes; }
+    // Frames lost to resyncs, according to the frame numbers around them.
+    public long droppedFrames() { return mDroppedFrames; }
+}
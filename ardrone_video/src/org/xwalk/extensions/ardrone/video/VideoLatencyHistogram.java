@@ -0,0 +1,99 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * A log-linear histogram of durations in microseconds, in the spirit of
+ * HdrHistogram.
+ *
+ * Each power of two range is split into SUB_BUCKETS linear buckets, so any
+ * recorded value is known within 1 / SUB_BUCKETS of its magnitude while the
+ * whole range up to about an hour fits in a few hundred counters. Recording
+ * never allocates.
+ */
+public class VideoLatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values from 2^MAX_EXPONENT microseconds on land in the last bucket.
+    private static final int MAX_EXPONENT = 32;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] mCounts;
+    private long mTotalCount;
+    private long mTotal;
+    private long mMin;
+    private long mMax;
+
+    public VideoLatencyHistogram() {
+        mCounts = new long[BUCKET_COUNT];
+        reset();
+    }
+
+    public synchronized void recordNanos(long nanos) {
+        long value = Math.max(nanos / 1000, 0);
+        ++mCounts[bucketOf(value)];
+        ++mTotalCount;
+        mTotal += value;
+        if (value < mMin) mMin = value;
+        if (value > mMax) mMax = value;
+    }
+
+    private static int bucketOf(long value) {
+        // Values below SUB_BUCKETS have a bucket of their own.
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) return BUCKET_COUNT - 1;
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Highest value falling into |bucket|.
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    // Smallest recorded value which |percentile| percent of the values do
+    // not exceed, up to the bucket precision.
+    public synchronized long valueAtPercentile(double percentile) {
+        if (mTotalCount == 0) return 0;
+
+        long rank = Math.max((long) Math.ceil(percentile / 100 * mTotalCount), 1);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts[i];
+            if (count >= rank) return Math.min(highestValueOf(i), mMax);
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) mCounts[i] = 0;
+        mTotalCount = 0;
+        mTotal = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject out = new JSONObject();
+        out.put("count", mTotalCount);
+        out.put("min", mTotalCount == 0 ? 0 : mMin);
+        out.put("mean", mTotalCount == 0 ? 0 : mTotal / mTotalCount);
+        out.put("p50", valueAtPercentile(50));
+        out.put("p90", valueAtPercentile(90));
+        out.put("p99", valueAtPercentile(99));
+        out.put("p999", valueAtPercentile(99.9));
+        out.put("max", mMax);
+        return out;
+    }
+}
@@ -0,0 +1,204 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A fixed set of preallocated segment files used as a ring.
+ *
+ * Files are created once and rewritten in place, a segment shorter than its
+ * file is followed by a 'free' box covering the stale tail, so no file is
+ * created, deleted or truncated per segment. A slot becomes free again when
+ * the page releases its segment; when none is free the oldest segment is
+ * evicted, which bounds the disk footprint even if the page never releases.
+ * Committing a segment renames its file to segment-<slot>-<generation>.mp4,
+ * so a path names one segment and a late release cannot free a newer one.
+ */
+public class VideoSegmentStore {
+    private static final String TAG = "VideoSegmentStore";
+
+    private static final int PREALLOCATED_SLOT_SIZE = 256 * 1024;
+    private static final int FREE_BOX_HEADER_SIZE = 8;
+    private static final int FREE = ('f' << 24) | ('r' << 16) | ('e' << 8) | 'e';
+
+    // A segment written into a slot, stale once the slot has been reused.
+    public static class Segment {
+        private final int mSlot;
+        private final long mGeneration;
+        private final File mFile;
+
+        private Segment(int slot, long generation, File file) {
+            mSlot = slot;
+            mGeneration = generation;
+            mFile = file;
+        }
+
+        public File file() { return mFile; }
+    }
+
+    private final File mDir;
+    // Current file and path of each slot.
+    private final File[] mFiles;
+    private final String[] mPaths;
+    private final RandomAccessFile[] mSlotFiles;
+    // Generation of the segment held by each slot, 0 if the slot is free.
+    private final long[] mGenerations;
+    private final ByteBuffer mFreeBoxHeader;
+
+    private long mNextGeneration;
+    private int mWritingSlot;
+
+    private long mHits;
+    private long mEvictions;
+
+    public VideoSegmentStore(File dir, int slots) throws IOException {
+        mDir = dir.getAbsoluteFile();
+        mFiles = new File[slots];
+        mPaths = new String[slots];
+        mSlotFiles = new RandomAccessFile[slots];
+        mGenerations = new long[slots];
+        mFreeBoxHeader = ByteBuffer.allocate(FREE_BOX_HEADER_SIZE);
+
+        for (int i = 0; i < slots; i++) {
+            mFiles[i] = segmentFile(i, 0);
+            mPaths[i] = mFiles[i].getPath();
+            mSlotFiles[i] = new RandomAccessFile(mFiles[i], "rw");
+            if (mSlotFiles[i].length() < PREALLOCATED_SLOT_SIZE) {
+                mSlotFiles[i].setLength(PREALLOCATED_SLOT_SIZE);
+            }
+        }
+
+        mNextGeneration = 1;
+        mWritingSlot = -1;
+        mHits = 0;
+        mEvictions = 0;
+    }
+
+    // Pick the slot for the next segment and return its channel positioned
+    // at 0. Must be followed by commitSegment() or abortSegment().
+    public synchronized FileChannel beginSegment() throws IOException {
+        int slot = -1;
+        for (int i = 0; i < mGenerations.length; i++) {
+            if (mGenerations[i] == 0) {
+                slot = i;
+                break;
+            }
+        }
+
+        if (slot >= 0) {
+            ++mHits;
+        } else {
+            // Evict the oldest segment.
+            for (int i = 0; i < mGenerations.length; i++) {
+                if (slot < 0 || mGenerations[i] < mGenerations[slot]) slot = i;
+            }
+            mGenerations[slot] = 0;
+            ++mEvictions;
+        }
+
+        mWritingSlot = slot;
+        FileChannel channel = mSlotFiles[slot].getChannel();
+        channel.position(0);
+        return channel;
+    }
+
+    public synchronized Segment commitSegment() throws IOException {
+        int slot = mWritingSlot;
+        mWritingSlot = -1;
+
+        // Hide the stale tail of the file behind a 'free' box.
+        RandomAccessFile file = mSlotFiles[slot];
+        FileChannel channel = file.getChannel();
+        long size = channel.position();
+        long length = file.length();
+        if (length > size) {
+            if (length - size < FREE_BOX_HEADER_SIZE) {
+                length = size + FREE_BOX_HEADER_SIZE;
+                file.setLength(length);
+            }
+            mFreeBoxHeader.clear();
+            mFreeBoxHeader.putInt((int) (length - size));
+            mFreeBoxHeader.putInt(FREE);
+            mFreeBoxHeader.flip();
+            while (mFreeBoxHeader.hasRemaining()) {
+                channel.write(mFreeBoxHeader, size + mFreeBoxHeader.position());
+            }
+        }
+
+        long generation = mNextGeneration++;
+        File segmentFile = segmentFile(slot, generation);
+        if (!mFiles[slot].renameTo(segmentFile)) {
+            throw new IOException("Cannot rename " + mFiles[slot] + " to " + segmentFile);
+        }
+        mFiles[slot] = segmentFile;
+        mPaths[slot] = segmentFile.getPath();
+        mGenerations[slot] = generation;
+        return new Segment(slot, generation, segmentFile);
+    }
+
+    public synchronized void abortSegment() {
+        mWritingSlot = -1;
+    }
+
+    // Whether |segment| still holds its data.
+    public synchronized boolean isCurrent(Segment segment) {
+        return mGenerations[segment.mSlot] == segment.mGeneration;
+    }
+
+    public synchronized void release(Segment segment) {
+        if (isCurrent(segment)) mGenerations[segment.mSlot] = 0;
+    }
+
+    // Release the segment stored at |path|, nothing if its slot has been
+    // reused since. Return false if |path| is not in the directory of this
+    // store.
+    public synchronized boolean release(String path) {
+        for (int i = 0; i < mPaths.length; i++) {
+            if (mPaths[i].equals(path)) {
+                mGenerations[i] = 0;
+                return true;
+            }
+        }
+        return mDir.getPath().equals(new File(path).getParent());
+    }
+
+    public synchronized void close() {
+        ARDroneVideoLog.LOG.i(TAG, "Segment store hits: " + mHits + ", evictions: " + mEvictions
+                + ", occupancy: " + occupancy() + "/" + slotCount());
+        for (RandomAccessFile file : mSlotFiles) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                ARDroneVideoLog.LOG.e(TAG, e.toString());
+            }
+        }
+    }
+
+    private File segmentFile(int slot, long generation) {
+        return new File(mDir, "segment-" + slot + "-" + generation + ".mp4");
+    }
+
+    public int slotCount() { return mGenerations.length; }
+
+    // Segments written into a slot that was free.
+    public synchronized long hits() { return mHits; }
+
+    // Segments written over one the page did not release yet.
+    public synchronized long evictions() { return mEvictions; }
+
+    // Slots holding a segment not released yet.
+    public synchronized int occupancy() {
+        int occupied = 0;
+        for (long generation : mGenerations) {
+            if (generation != 0) ++occupied;
+        }
+        return occupied;
+    }
+}
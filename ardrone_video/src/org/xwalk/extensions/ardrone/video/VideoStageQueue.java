@@ -0,0 +1,109 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.util.ArrayDeque;
+
+/*
+ * A bounded handoff queue between two stages of the video pipeline.
+ *
+ * When the queue is full, offer() applies the overflow policy of the queue.
+ * Dropping always extends up to the next key item, since frames following a
+ * gap can not be decoded until the next IDR-Frame anyway.
+ */
+public abstract class VideoStageQueue<T> {
+    private final ArrayDeque<T> mItems;
+    private final int mCapacity;
+    private final ARDroneVideoOverflowPolicy mPolicy;
+
+    private boolean mDroppingUntilKeyItem;
+    private boolean mClosed;
+    private long mDroppedCount;
+
+    public VideoStageQueue(int capacity, ARDroneVideoOverflowPolicy policy) {
+        mItems = new ArrayDeque<T>(capacity);
+        mCapacity = capacity;
+        mPolicy = policy;
+        mDroppingUntilKeyItem = false;
+        mClosed = false;
+        mDroppedCount = 0;
+    }
+
+    // Whether the item starts a group of pictures.
+    protected abstract boolean isKeyItem(T item);
+
+    // Called for every item dropped by the queue, outside of its consumer.
+    protected abstract void onDropped(T item);
+
+    // Return false if |item| has been dropped.
+    public synchronized boolean offer(T item) throws InterruptedException {
+        while (true) {
+            if (mClosed) {
+                drop(item);
+                return false;
+            }
+
+            if (mDroppingUntilKeyItem) {
+                if (!isKeyItem(item)) {
+                    drop(item);
+                    return false;
+                }
+                mDroppingUntilKeyItem = false;
+            }
+
+            if (mItems.size() < mCapacity) break;
+
+            if (mPolicy == ARDroneVideoOverflowPolicy.BLOCK) {
+                wait();
+            } else if (mPolicy == ARDroneVideoOverflowPolicy.DROP_NON_IDR && !isKeyItem(item)) {
+                drop(item);
+                mDroppingUntilKeyItem = true;
+                return false;
+            } else {
+                dropOldestGroup();
+            }
+        }
+
+        mItems.addLast(item);
+        notifyAll();
+        return true;
+    }
+
+    // Return null once the queue is closed.
+    public synchronized T take() throws InterruptedException {
+        while (mItems.isEmpty()) {
+            if (mClosed) return null;
+            wait();
+        }
+
+        T item = mItems.removeFirst();
+        notifyAll();
+        return item;
+    }
+
+    public synchronized void close() {
+        mClosed = true;
+        while (!mItems.isEmpty()) drop(mItems.removeFirst());
+        notifyAll();
+    }
+
+    public synchronized int size() { return mItems.size(); }
+    public synchronized long droppedCount() { return mDroppedCount; }
+
+    private void dropOldestGroup() {
+        drop(mItems.removeFirst());
+        while (!mItems.isEmpty() && !isKeyItem(mItems.peekFirst())) {
+            drop(mItems.removeFirst());
+        }
+
+        // The whole queue belonged to one group, its tail is still coming.
+        if (mItems.isEmpty()) mDroppingUntilKeyItem = true;
+    }
+
+    private void drop(T item) {
+        ++mDroppedCount;
+        onDropped(item);
+    }
+}
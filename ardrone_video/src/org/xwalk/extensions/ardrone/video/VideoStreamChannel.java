@@ -0,0 +1,112 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.ardrone.video;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/*
+ * The TCP video stream of the drone.
+ *
+ * A non-blocking SocketChannel waited on with a Selector, which is what
+ * gives the connect and read timeouts: a blocking SocketChannel ignores
+ * SO_TIMEOUT. Reads go straight into the caller's buffer, so a direct
+ * buffer is filled without any intermediate copy.
+ */
+public class VideoStreamChannel implements ReadableByteChannel {
+    private final SocketChannel mChannel;
+    private final Selector mSelector;
+    private final long mReadTimeout;
+
+    private VideoStreamChannel(SocketChannel channel, Selector selector, long readTimeout) {
+        mChannel = channel;
+        mSelector = selector;
+        mReadTimeout = readTimeout;
+    }
+
+    // Connect to |address|. A timeout of 0 waits forever, a receive buffer
+    // size of 0 keeps the system default.
+    public static VideoStreamChannel open(InetSocketAddress address, int receiveBufferSize,
+            long connectTimeout, long readTimeout) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        Selector selector = null;
+        try {
+            channel.configureBlocking(false);
+            // Set before connecting so the TCP window scale takes it into account.
+            if (receiveBufferSize > 0) channel.socket().setReceiveBufferSize(receiveBufferSize);
+
+            selector = Selector.open();
+            SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+            if (!channel.connect(address)) {
+                long deadline = System.currentTimeMillis() + connectTimeout;
+                while (!channel.finishConnect()) {
+                    long timeout = 0;
+                    if (connectTimeout > 0) {
+                        timeout = deadline - System.currentTimeMillis();
+                        if (timeout <= 0) throw new SocketTimeoutException("Connect timed out");
+                    }
+                    selector.select(timeout);
+                    selector.selectedKeys().clear();
+                    if (Thread.currentThread().isInterrupted()) throw new ClosedByInterruptException();
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            return new VideoStreamChannel(channel, selector, readTimeout);
+        } catch (IOException e) {
+            if (selector != null) selector.close();
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        long deadline = System.currentTimeMillis() + mReadTimeout;
+        while (true) {
+            int bytesRead = mChannel.read(dst);
+            if (bytesRead != 0 || !dst.hasRemaining()) return bytesRead;
+
+            long timeout = 0;
+            if (mReadTimeout > 0) {
+                timeout = deadline - System.currentTimeMillis();
+                if (timeout <= 0) throw new SocketTimeoutException("Read timed out");
+            }
+            try {
+                mSelector.select(timeout);
+                mSelector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                throw new AsynchronousCloseException();
+            }
+
+            // select() also returns on close() and Thread.interrupt().
+            if (!mChannel.isOpen()) throw new AsynchronousCloseException();
+            if (Thread.currentThread().isInterrupted()) throw new ClosedByInterruptException();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    // May be called from any thread to abort a pending read.
+    @Override
+    public void close() throws IOException {
+        try {
+            mChannel.close();
+        } finally {
+            mSelector.close();
+        }
+    }
+}
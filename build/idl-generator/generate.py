@@ -11,7 +11,8 @@
 # - Copy idl file to binding test idl's dir
 # - Call run-bindings-test script, which searches idl's dir for all idls
 #   and generate files to results dir
-# - Move the generated files (.java and .js) to out dir
+# - Move the generated files (.java and .js) to out dir, and the dispatch
+#   micro-benchmark to its benchmark/ dir
 
 # Usage example:
 # ./generate.py --idl-file=../../echo/src/org/xwalk/extensions/echo.idl
@@ -76,8 +77,10 @@ def main(argv):
   binding_results_path = os.path.join(binding_path, 'results')
   js_file = args.component + '.js'
   java_file = args.component + '.java'
+  benchmark_file = args.component + '_dispatch_benchmark.java'
   js_result = os.path.join(binding_results_path, js_file)
   java_result = os.path.join(binding_results_path, java_file)
+  benchmark_result = os.path.join(binding_results_path, benchmark_file)
 
   # Concatenate self-defined js to generated js
   self_defined_js = os.path.join(os.path.dirname(args.idl_file), js_file)
@@ -89,6 +92,10 @@ def main(argv):
   # Move generated files to out dir
   MoveFile(js_result, os.path.join(out_build_path, js_file))
   MoveFile(java_result, os.path.join(out_src_path, java_file))
+  # Kept out of src so that it is not built into the extension.
+  out_benchmark_path = os.path.join(out_build_path, 'benchmark')
+  MakeDirectory(out_benchmark_path)
+  MoveFile(benchmark_result, os.path.join(out_benchmark_path, benchmark_file))
   Remove(os.path.join(binding_modules_path, os.path.basename(args.idl_file)))
 
 
@@ -61,6 +61,9 @@ third_party_dir = os.path.normpath(os.path.join(
     module_path, os.pardir, os.pardir, os.pardir, os.pardir))
 templates_dir = os.path.normpath(os.path.join(
     module_path, os.pardir, 'templates'))
+# The JS shared with the hand-written extensions, for {% include %}.
+common_dir = os.path.normpath(os.path.join(
+    third_party_dir, os.pardir, os.pardir, os.pardir, 'common'))
 # Make sure extension is .py, not .pyc or .pyo, so doesn't depend on caching
 module_pyname = os.path.splitext(module_filename)[0] + '.py'
 
@@ -158,6 +161,10 @@ class CodeGeneratorExt(CodeGeneratorBase):
         java_path = posixpath.join(self.output_dir, '%s.java' % definition_name)
         return js_path, java_path
 
+    def benchmark_path(self, definition_name):
+        return posixpath.join(self.output_dir,
+                              '%s_dispatch_benchmark.java' % definition_name)
+
     def generate_code_internal(self, definitions, definition_name):
         if definition_name in definitions.interfaces:
             return self.generate_interface_code(
@@ -193,9 +200,20 @@ class CodeGeneratorExt(CodeGeneratorBase):
         js_text, java_text = render_template(
             interface_info, js_template, java_template, template_context)
         js_path, java_path = self.output_paths(interface_name)
+        if interface.is_callback:
+            return (
+                (js_path, js_text),
+                (java_path, java_text),
+            )
+
+        # Standalone micro-benchmark of the dispatch in interface.java.
+        benchmark_template = self.jinja_env.get_template(
+            'interface_benchmark.java')
+        benchmark_text = benchmark_template.render(template_context)
         return (
             (js_path, js_text),
             (java_path, java_text),
+            (self.benchmark_path(interface_name), benchmark_text),
         )
 
     def generate_dictionary_code(self, definitions, dictionary_name,
@@ -250,7 +268,7 @@ class CodeGeneratorDictionaryImpl(CodeGeneratorBase):
 
 def initialize_jinja_env(cache_dir):
     jinja_env = jinja2.Environment(
-        loader=jinja2.FileSystemLoader(templates_dir),
+        loader=jinja2.FileSystemLoader([templates_dir, common_dir]),
         # Bytecode cache is not concurrency-safe unless pre-cached:
         # if pre-cached this is read-only, but writing creates a race condition.
         bytecode_cache=jinja2.FileSystemBytecodeCache(cache_dir),
@@ -272,6 +272,8 @@ def interface_context(interface):
              for attribute in attributes),
         'has_conditional_attributes': any(attribute['per_context_enabled_function'] or attribute['exposed_test'] for attribute in attributes),
         'has_constructor_attributes': any(attribute['constructor_type'] for attribute in attributes),
+        # Events go through an EventPublisher, see common/.
+        'has_event_handlers': any(attribute['idl_type'] == 'EventHandler' for attribute in attributes),
         'has_replaceable_attributes': any(attribute['is_replaceable'] for attribute in attributes),
     })
 
@@ -35,7 +35,7 @@ Design doc: http://www.chromium.org/developers/design-documents/idl-compiler
 """
 
 from idl_definitions import IdlArgument
-from idl_types import IdlTypeBase, IdlUnionType, inherits_interface
+from idl_types import IdlTypeBase, IdlUnionType, inherits_interface, INTEGER_TYPES
 from ext_globals import includes
 import ext_types
 import ext_utilities
@@ -81,6 +81,66 @@ def use_local_result(method):
             idl_type.is_explicit_nullable)
 
 
+# Java type of a typed impl method argument or result, and the getter of
+# the generated MessageReader which reads it.
+JAVA_TYPES = {
+    'boolean': ('boolean', 'Boolean'),
+    'DOMString': ('String', 'String'),
+    'float': ('double', 'Double'),
+    'unrestricted float': ('double', 'Double'),
+    'double': ('double', 'Double'),
+    'unrestricted double': ('double', 'Double'),
+}
+JAVA_TYPES.update((integer_type, ('long', 'Long'))
+                  for integer_type in INTEGER_TYPES)
+
+
+def java_type(idl_type):
+    return JAVA_TYPES.get(idl_type, (None, None))[0]
+
+
+# [ResolveWith]
+def java_return_type(method):
+    """Returns the Java type an impl method returns, None if unsupported.
+
+    A Promise resolves with the type named by [ResolveWith], or nothing.
+    """
+    idl_type = method.idl_type.base_type if method.idl_type else 'void'
+    if idl_type == 'Promise':
+        idl_type = method.extended_attributes.get('ResolveWith', 'void')
+    if idl_type == 'void':
+        return 'void'
+    return java_type(idl_type)
+
+
+def is_java_typed(method):
+    """Whether the impl method takes and returns Java types.
+
+    Otherwise it gets the message as a JSONObject and returns the reply.
+    """
+    return (java_return_type(method) is not None and
+            all(java_type(argument.idl_type.base_type) and
+                not argument.is_variadic
+                for argument in method.arguments))
+
+
+# [Sync]
+def is_sync(method):
+    """Whether the method is called with a blocking sync message.
+
+    The reply is the JSON text of the result, so only typed methods which
+    do not return a Promise can be [Sync].
+    """
+    if 'Sync' not in method.extended_attributes:
+        return False
+    if (not is_java_typed(method) or
+        (method.idl_type and method.idl_type.base_type == 'Promise')):
+        raise ValueError('[Sync] method %s must not return a Promise and '
+                         'must only use typed arguments and results' %
+                         method.name)
+    return True
+
+
 def method_context(interface, method):
     arguments = method.arguments
     extended_attributes = method.extended_attributes
@@ -139,6 +199,8 @@ def method_context(interface, method):
 
     return {
         'activity_logging_world_list': ext_utilities.activity_logging_world_list(method),  # [ActivityLogging]
+        'is_java_typed': is_java_typed(method),
+        'java_return_type': java_return_type(method),
         'arguments': [argument_context(interface, method, argument, index)
                       for index, argument in enumerate(arguments)],
         'argument_list': ', '.join(arg.name for arg in arguments),
@@ -185,6 +247,7 @@ def method_context(interface, method):
         'is_raises_exception': is_raises_exception,
         'is_read_only': 'Unforgeable' in extended_attributes,
         'is_static': is_static,
+        'is_sync': is_sync(method),  # [Sync]
         'is_variadic': arguments and arguments[-1].is_variadic,
         'measure_as': ext_utilities.measure_as(method),  # [MeasureAs]
         'name': name,
@@ -254,6 +317,8 @@ def argument_context(interface, method, argument, index):
         'is_optional': argument.is_optional,
         'is_variadic_wrapper_type': is_variadic_wrapper_type,
         'is_wrapper_type': idl_type.is_wrapper_type,
+        'java_getter': JAVA_TYPES.get(idl_type.base_type, (None, None))[1],
+        'java_type': java_type(idl_type.base_type),
         'name': argument.name,
         'private_script_cpp_value_to_ext_value': idl_type.cpp_value_to_ext_value(
             argument.name, isolate='scriptState->isolate()',
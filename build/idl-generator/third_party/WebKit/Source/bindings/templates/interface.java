@@ -4,14 +4,71 @@
 
 // This file has been auto-generated by {{code_generator}}. DO NOT MODIFY!
 
+{##############################################################################}
+{% macro argument_value(argument, reader='mReader') %}
+{% if argument.is_optional %}
+{{reader}}.has("{{argument.name}}") ? {{reader}}.get{{argument.java_getter}}("{{argument.name}}") : {{'null' if argument.java_type == 'String' else 'false' if argument.java_type == 'boolean' else '0'}}
+{%- else %}
+{{reader}}.get{{argument.java_getter}}("{{argument.name}}")
+{%- endif %}
+{%- endmacro %}
+{##############################################################################}
+{% macro typed_call(method) %}
+{% if method.java_return_type == 'void' %}
+                    mImpl.on{{method.name|capitalize}}(
+{%- for argument in method.arguments %}{{argument_value(argument)}}{{', ' if not loop.last}}{% endfor %});
+                    beginReply(CMD_{{method.name|upper}});
+{% else %}
+                    {{method.java_return_type}} result = mImpl.on{{method.name|capitalize}}(
+{%- for argument in method.arguments %}{{argument_value(argument)}}{{', ' if not loop.last}}{% endfor %});
+                    beginReply(CMD_{{method.name|upper}});
+                    mReply.append(",\"data\":");
+{% if method.java_return_type == 'String' %}
+                    appendString(mReply, result);
+{% elif method.java_return_type == 'double' %}
+                    appendDouble(mReply, result);
+{% else %}
+                    mReply.append(result);
+{% endif %}
+{% endif %}
+                    mReply.append('}');
+{%- endmacro %}
+{##############################################################################}
+{% macro sync_call(method) %}
+{% if method.java_return_type == 'void' %}
+                        mImpl.on{{method.name|capitalize}}(
+{%- for argument in method.arguments %}{{argument_value(argument, 'mSyncReader')}}{{', ' if not loop.last}}{% endfor %});
+                        return "";
+{%- else %}
+                        {{method.java_return_type}} result = mImpl.on{{method.name|capitalize}}(
+{%- for argument in method.arguments %}{{argument_value(argument, 'mSyncReader')}}{{', ' if not loop.last}}{% endfor %});
+{% if method.java_return_type == 'String' %}
+                        mSyncReply.setLength(0);
+                        appendString(mSyncReply, result);
+                        return mSyncReply.toString();
+{%- elif method.java_return_type == 'double' %}
+                        mSyncReply.setLength(0);
+                        appendDouble(mSyncReply, result);
+                        return mSyncReply.toString();
+{%- else %}
+                        return String.valueOf(result);
+{%- endif %}
+{%- endif %}
+{%- endmacro %}
+{##############################################################################}
+{% set sync_methods = methods|selectattr('is_sync')|list %}
 package org.xwalk.extensions;
 
 import android.util.Log;
+import java.util.HashMap;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import org.xwalk.app.runtime.extension.XWalkExtensionClient;
 import org.xwalk.app.runtime.extension.XWalkExtensionContextClient;
+{% if has_event_handlers %}
+import org.xwalk.extensions.common.EventPublisher;
+{% endif %}
 
 import org.xwalk.extensions.{{interface_name}}_impl;
 
@@ -22,37 +79,223 @@ public class {{interface_name}} extends XWalkExtensionClient {
 {% for method in methods %}
     private static final String CMD_{{method.name|upper}} = "{{method.name}}";
 {% endfor %}
+{% for method in methods %}
+    private static final int CMD_ID_{{method.name|upper}} = {{loop.index0}};
+{% endfor %}
+{% if has_event_handlers %}
+    // The page returns the credits of the events it has handled.
+    private static final String CMD_EVENT_CREDITS = "eventCredits";
+    private static final int CMD_ID_EVENT_CREDITS = {{methods|length}};
+    private static final int EVENT_CREDITS = 8;
+{% endif %}
+
+    // Built once per class: a message is dispatched with one hash lookup and
+    // a switch, instead of comparing its command with every method name.
+    private static final HashMap<String, Integer> sCommandIds = new HashMap<String, Integer>();
+    static {
+{% for method in methods %}
+        sCommandIds.put(CMD_{{method.name|upper}}, CMD_ID_{{method.name|upper}});
+{% endfor %}
+{% if has_event_handlers %}
+        sCommandIds.put(CMD_EVENT_CREDITS, CMD_ID_EVENT_CREDITS);
+{% endif %}
+    }
 
     private final {{interface_name}}_impl mImpl;
+{% if has_event_handlers %}
+    private final EventPublisher mEvents;
+{% endif %}
+
+    // Reused for every message, onMessage() is only called on one thread.
+    private final MessageReader mReader;
+    private final StringBuilder mReply;
+{% if sync_methods %}
+    // onSyncMessage() may be called on another thread.
+    private final MessageReader mSyncReader;
+    private final StringBuilder mSyncReply;
+{% endif %}
 
     public {{interface_name}}(String name, String JsApiContent, XWalkExtensionContextClient context) {
         super(name, JsApiContent, context);
         mExtensionContext = context;
+{% if has_event_handlers %}
+        mEvents = new EventPublisher(new EventPublisher.Sender() {
+            @Override
+            public void send(String message) {
+                broadcastMessage(message);
+            }
+        }, EVENT_CREDITS);
+{% endif %}
         mImpl = new {{interface_name}}_impl(this);
+        mReader = new MessageReader();
+        mReply = new StringBuilder(256);
+{% if sync_methods %}
+        mSyncReader = new MessageReader();
+        mSyncReply = new StringBuilder(256);
+{% endif %}
+    }
+
+{% if has_event_handlers %}
+    // Events to the page should be published through here rather than
+    // broadcastMessage(), so a busy page does not fall behind.
+    public EventPublisher events() {
+        return mEvents;
+    }
+
+    @Override
+    public void onDestroy() {
+        mEvents.close();
     }
 
+{% endif %}
     @Override
     public void onMessage(int instanceId, String message) {
         if (message.isEmpty()) return;
         try {
-            JSONObject jsonInput = new JSONObject(message);
-            String cmd = jsonInput.getString("cmd");
-            JSONObject jsonOutput = null;
-            if (false) {}
+            mReader.read(message);
+            String cmd = mReader.getString("cmd");
+            Integer cmdId = sCommandIds.get(cmd);
+            if (cmdId == null) {
+                Log.e(TAG, "Unexpected message received: " + message);
+                return;
+            }
+
+            switch (cmdId) {
 {% for method in methods %}
-            else if (cmd.equals(CMD_{{method.name|upper}})) {
-                jsonOutput = mImpl.on{{method.name|capitalize}}(jsonInput);
+                case CMD_ID_{{method.name|upper}}: {
+{% if method.is_java_typed %}
+{{typed_call(method)}}
+{% else %}
+                    JSONObject jsonInput = new JSONObject(message);
+                    JSONObject jsonOutput = mImpl.on{{method.name|capitalize}}(jsonInput);
+                    if (jsonOutput == null) jsonOutput = new JSONObject();
+                    if (!jsonOutput.has("cmd")) jsonOutput.put("cmd", cmd);
+                    jsonOutput.put("asyncCallId", jsonInput.get("asyncCallId"));
+                    mReply.setLength(0);
+                    mReply.append(jsonOutput.toString());
+{% endif %}
+                    break;
+                }
+{% endfor %}
+{% if has_event_handlers %}
+                case CMD_ID_EVENT_CREDITS:
+                    mEvents.onCredits((int) mReader.getLong("count"));
+                    return;
+{% endif %}
+                default:
+                    return;
             }
+            this.postMessage(instanceId, mReply.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            postError(instanceId);
+        }
+    }
+
+{% if sync_methods %}
+    // [Sync] methods reply with the JSON text of their result, nothing for
+    // void, or {"error": message}. No promise and no asyncCallId involved.
+    @Override
+    public String onSyncMessage(int instanceId, String message) {
+        if (message.isEmpty()) return null;
+        synchronized (mSyncReader) {
+            try {
+                mSyncReader.read(message);
+                Integer cmdId = sCommandIds.get(mSyncReader.getString("cmd"));
+                if (cmdId == null) cmdId = -1;
+                switch (cmdId) {
+{% for method in sync_methods %}
+                    case CMD_ID_{{method.name|upper}}: {
+{{sync_call(method)}}
+                    }
 {% endfor %}
-            else {
-                Log.e(TAG, "Unexpected message received: " + message);
-                return;
+                    default:
+                        Log.e(TAG, "Unexpected sync message received: " + message);
+                        return syncError("Unexpected message");
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                return syncError(e.getMessage());
             }
-            if (!jsonOutput.has("cmd")) jsonOutput.put("cmd", cmd);
-            jsonOutput.put("asyncCallId", jsonInput.getString("asyncCallId"));
-            this.postMessage(instanceId, jsonOutput.toString());
+        }
+    }
+
+    private String syncError(String error) {
+        mSyncReply.setLength(0);
+        mSyncReply.append("{\"error\":");
+        appendString(mSyncReply, error);
+        mSyncReply.append('}');
+        return mSyncReply.toString();
+    }
+
+{% endif %}
+    // Start the reply to the message in mReader, leaving the object open.
+    private void beginReply(String cmd) throws JSONException {
+        mReply.setLength(0);
+        mReply.append("{\"cmd\":");
+        appendString(mReply, cmd);
+        mReply.append(",\"asyncCallId\":");
+        mReader.appendRaw("asyncCallId", mReply);
+    }
+
+    // Reject the promise of the message in mReader, if it has one.
+    private void postError(int instanceId) {
+        if (!mReader.has("asyncCallId")) return;
+        try {
+            mReply.setLength(0);
+            mReply.append("{\"cmd\":\"asyncCallError\",\"asyncCallId\":");
+            mReader.appendRaw("asyncCallId", mReply);
+            mReply.append('}');
+            this.postMessage(instanceId, mReply.toString());
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
         }
     }
+
+    private static void appendString(StringBuilder b, String value) {
+        if (value == null) {
+            b.append("null");
+            return;
+        }
+
+        b.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        b.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        b.append(c);
+                    }
+            }
+        }
+        b.append('"');
+    }
+
+    // NaN and infinities are not valid JSON.
+    private static void appendDouble(StringBuilder b, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            b.append("null");
+        } else {
+            b.append(value);
+        }
+    }
+
+{% include 'message_reader.java' %}
 }
@@ -47,6 +47,23 @@ function createPromise(msg) {
   return promise;
 }
 
+// Blocks until the native side returns, for [Sync] methods: no promise and
+// no asyncCallId, the reply is the JSON text of the result.
+function sendSyncMessage(msg) {
+  var reply = extension.internal.sendSyncMessage(JSON.stringify(msg));
+  if (!reply)
+    return undefined;
+
+  var result = JSON.parse(reply);
+  if (result !== null && typeof result === 'object')
+    throw new Error(result.error);
+  return result;
+}
+
+{% if has_event_handlers %}
+{% include 'event_credits.js' %}
+
+{% endif %}
 function _addConstProperty(obj, propertyKey, propertyValue) {
   Object.defineProperty(obj, propertyKey, {
     configurable: true,
@@ -148,9 +165,13 @@ function isValidType(type) {
     '{{arg.name}}': {{arg.name}},
 {% endfor %}
   };
+{% if method.is_sync %}
+  return sendSyncMessage(msg);
+{% else %}
 {# TODO(hdq) Only return Promise for function defined with Promise:
              if method.idl_type == 'Promise' #}
   return createPromise(msg);
+{% endif %}
 };
 {% endfor %}
 
@@ -168,6 +189,7 @@ extension.setMessageListener(function(json) {
 {% for attribute in attributes if attribute.idl_type == 'EventHandler' %}
 {% set event = '%s' % attribute.name|replace('on', '', 1) %}
 {{handle_cmd_begin(event)}}
+      EventCredits.handled();
       var event = new CustomEvent('{{event}}');
       _addConstProperty(event, 'msg', msg);
       {{g_manager}}.dispatchEvent(event);
@@ -189,5 +211,5 @@ function handleAsyncCallError(msg) {
     return;
 
   g_async_calls[msg.asyncCallId].reject(Error('Async operation failed'));
-  delete _promises[msg.asyncCallId];
+  delete g_async_calls[msg.asyncCallId];
 }
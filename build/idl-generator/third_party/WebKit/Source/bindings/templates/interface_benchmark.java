@@ -0,0 +1,102 @@
+// Copyright 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+// This file has been auto-generated by {{code_generator}}. DO NOT MODIFY!
+
+// Compares the command dispatch of the generated {{interface_name}}.onMessage,
+// a hash lookup then a switch, with a chain of String.equals() over the
+// same commands. Every dispatch gets a new copy of its command, as out of a
+// parsed message, so the table pays for hashing it; making the copy is timed
+// on its own and taken off. Plain Java, run it on the host or on a device with:
+//   javac {{interface_name}}_dispatch_benchmark.java
+//   java org.xwalk.extensions.{{interface_name}}_dispatch_benchmark
+
+package org.xwalk.extensions;
+
+import java.util.HashMap;
+
+public class {{interface_name}}_dispatch_benchmark {
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 2000000;
+
+    private static final int COPY_ONLY = 0;
+    private static final int BY_EQUALS = 1;
+    private static final int BY_TABLE = 2;
+
+{% for method in methods %}
+    private static final String CMD_{{method.name|upper}} = "{{method.name}}";
+{% endfor %}
+{% for method in methods %}
+    private static final int CMD_ID_{{method.name|upper}} = {{loop.index0}};
+{% endfor %}
+
+    private static final HashMap<String, Integer> sCommandIds = new HashMap<String, Integer>();
+    static {
+{% for method in methods %}
+        sCommandIds.put(CMD_{{method.name|upper}}, CMD_ID_{{method.name|upper}});
+{% endfor %}
+    }
+
+    private static int dispatchByTable(String cmd) {
+        Integer cmdId = sCommandIds.get(cmd);
+        if (cmdId == null) return -1;
+
+        switch (cmdId) {
+{% for method in methods %}
+            case CMD_ID_{{method.name|upper}}:
+                return {{loop.index0}};
+{% endfor %}
+            default:
+                return -1;
+        }
+    }
+
+    private static int dispatchByEquals(String cmd) {
+        if (false) {}
+{% for method in methods %}
+        else if (cmd.equals(CMD_{{method.name|upper}})) return {{loop.index0}};
+{% endfor %}
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        char[][] commands = new char[][] {
+{% for method in methods %}
+            "{{method.name}}".toCharArray(),
+{% endfor %}
+            "unknown".toCharArray(),
+        };
+
+        for (int round = 0; round < ROUNDS; round++) {
+            double copyTime = run(commands, COPY_ONLY);
+            double equalsTime = run(commands, BY_EQUALS) - copyTime;
+            double tableTime = run(commands, BY_TABLE) - copyTime;
+            System.out.println(String.format(
+                    "{{interface_name}}: %d commands, equals %.1f ns, table %.1f ns per dispatch"
+                    + " (%.1f ns for the copy taken off)",
+                    commands.length - 1, equalsTime, tableTime, copyTime));
+        }
+    }
+
+    private static double run(char[][] commands, int mode) {
+        int sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            // A new String has no cached hash, unlike one reused every
+            // commands.length iterations.
+            String cmd = new String(commands[i % commands.length]);
+            if (mode == BY_TABLE) {
+                sink += dispatchByTable(cmd);
+            } else if (mode == BY_EQUALS) {
+                sink += dispatchByEquals(cmd);
+            } else {
+                sink += cmd.length();
+            }
+        }
+        double time = (System.nanoTime() - start) / (double) ITERATIONS;
+        // Keep the results alive.
+        if (sink == 42) System.out.print("");
+        return time;
+    }
+}
@@ -0,0 +1,235 @@
+    // Reads the top-level fields of a JSON message in place. read() only
+    // records where each field is, a value is decoded when asked for, so the
+    // fields a method does not declare are skipped over without allocating.
+    // Field names are compared as written, they are never escaped.
+    private static final class MessageReader {
+        private String mMessage;
+        private int mPosition;
+        private int mFieldCount;
+        private int[] mFields;
+        private final StringBuilder mString;
+
+        MessageReader() {
+            // Key start, key end, value start and value end of each field.
+            mFields = new int[8 * 4];
+            mString = new StringBuilder();
+        }
+
+        void read(String message) throws JSONException {
+            mMessage = message;
+            mPosition = 0;
+            mFieldCount = 0;
+
+            skipSpaces();
+            expect('{');
+            skipSpaces();
+            if (peek() == '}') return;
+            while (true) {
+                skipSpaces();
+                if (peek() != '"') throw error("Expected a field name");
+                int keyStart = mPosition + 1;
+                skipString();
+                int keyEnd = mPosition - 1;
+                skipSpaces();
+                expect(':');
+                skipSpaces();
+                int valueStart = mPosition;
+                skipValue();
+                addField(keyStart, keyEnd, valueStart, mPosition);
+
+                skipSpaces();
+                char c = peek();
+                ++mPosition;
+                if (c == '}') return;
+                if (c != ',') throw error("Expected , or }");
+            }
+        }
+
+        boolean has(String name) {
+            return find(name) >= 0;
+        }
+
+        String getString(String name) throws JSONException {
+            int field = field(name);
+            int start = mFields[field * 4 + 2];
+            int end = mFields[field * 4 + 3];
+            if (mMessage.startsWith("null", start)) return null;
+            if (mMessage.charAt(start) != '"') return mMessage.substring(start, end);
+
+            mString.setLength(0);
+            for (int i = start + 1; i < end - 1; i++) {
+                char c = mMessage.charAt(i);
+                if (c != '\\') {
+                    mString.append(c);
+                    continue;
+                }
+
+                c = mMessage.charAt(++i);
+                switch (c) {
+                    case 'b':
+                        mString.append('\b');
+                        break;
+                    case 'f':
+                        mString.append('\f');
+                        break;
+                    case 'n':
+                        mString.append('\n');
+                        break;
+                    case 'r':
+                        mString.append('\r');
+                        break;
+                    case 't':
+                        mString.append('\t');
+                        break;
+                    case 'u':
+                        try {
+                            mString.append((char) Integer.parseInt(
+                                    mMessage.substring(i + 1, i + 5), 16));
+                        } catch (RuntimeException e) {
+                            throw error("Bad escape in " + name);
+                        }
+                        i += 4;
+                        break;
+                    default:
+                        mString.append(c);
+                }
+            }
+            return mString.toString();
+        }
+
+        long getLong(String name) throws JSONException {
+            int field = field(name);
+            int start = mFields[field * 4 + 2];
+            int end = mFields[field * 4 + 3];
+            int i = start;
+            boolean negative = i < end && mMessage.charAt(i) == '-';
+            if (negative) ++i;
+            int digits = i;
+            // Accumulated negatively, as Long.parseLong does, so that
+            // Long.MIN_VALUE fits too.
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long value = 0;
+            while (i < end) {
+                char c = mMessage.charAt(i);
+                if (c < '0' || c > '9') break;
+                int digit = c - '0';
+                if (value < limit / 10 || value * 10 < limit + digit) break;
+                value = value * 10 - digit;
+                ++i;
+            }
+            if (i == end && i > digits) return negative ? value : -value;
+            // Fractions, exponents, quoted numbers and out of range ones.
+            return (long) getDouble(name);
+        }
+
+        double getDouble(String name) throws JSONException {
+            String value = getString(name);
+            try {
+                return Double.parseDouble(value);
+            } catch (RuntimeException e) {
+                throw error(name + " is not a number");
+            }
+        }
+
+        boolean getBoolean(String name) throws JSONException {
+            int start = mFields[field(name) * 4 + 2];
+            if (mMessage.startsWith("true", start)) return true;
+            if (mMessage.startsWith("false", start)) return false;
+            throw error(name + " is not a boolean");
+        }
+
+        // Append the value of |name| as written in the message.
+        void appendRaw(String name, StringBuilder b) throws JSONException {
+            int field = field(name);
+            b.append(mMessage, mFields[field * 4 + 2], mFields[field * 4 + 3]);
+        }
+
+        private int find(String name) {
+            for (int i = 0; i < mFieldCount; i++) {
+                int keyStart = mFields[i * 4];
+                if (mFields[i * 4 + 1] - keyStart == name.length()
+                        && mMessage.startsWith(name, keyStart)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int field(String name) throws JSONException {
+            int field = find(name);
+            if (field < 0) throw new JSONException("No value for " + name);
+            return field;
+        }
+
+        private void addField(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+            if ((mFieldCount + 1) * 4 > mFields.length) {
+                int[] fields = new int[mFields.length * 2];
+                System.arraycopy(mFields, 0, fields, 0, mFields.length);
+                mFields = fields;
+            }
+            int i = mFieldCount * 4;
+            mFields[i] = keyStart;
+            mFields[i + 1] = keyEnd;
+            mFields[i + 2] = valueStart;
+            mFields[i + 3] = valueEnd;
+            ++mFieldCount;
+        }
+
+        private void skipValue() throws JSONException {
+            char c = peek();
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                do {
+                    c = peek();
+                    if (c == '"') {
+                        skipString();
+                        continue;
+                    }
+                    if (c == '{' || c == '[') ++depth;
+                    if (c == '}' || c == ']') --depth;
+                    ++mPosition;
+                } while (depth > 0);
+            } else {
+                int start = mPosition;
+                while (mPosition < mMessage.length()) {
+                    c = mMessage.charAt(mPosition);
+                    if (c == ',' || c == '}' || c == ']' || c <= ' ') break;
+                    ++mPosition;
+                }
+                if (mPosition == start) throw error("Expected a value");
+            }
+        }
+
+        // From the opening quote to after the closing one.
+        private void skipString() throws JSONException {
+            ++mPosition;
+            while (true) {
+                char c = peek();
+                ++mPosition;
+                if (c == '"') return;
+                if (c == '\\') ++mPosition;
+            }
+        }
+
+        private void skipSpaces() {
+            while (mPosition < mMessage.length() && mMessage.charAt(mPosition) <= ' ') {
+                ++mPosition;
+            }
+        }
+
+        private char peek() throws JSONException {
+            if (mPosition >= mMessage.length()) throw error("Unexpected end");
+            return mMessage.charAt(mPosition);
+        }
+
+        private void expect(char c) throws JSONException {
+            if (peek() != c) throw error("Expected " + c);
+            ++mPosition;
+        }
+
+        private JSONException error(String message) {
+            return new JSONException(message + " at " + mPosition);
+        }
+    }
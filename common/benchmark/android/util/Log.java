@@ -0,0 +1,37 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package android.util;
+
+// Host stand-in for android.util.Log, so that the benchmarks under
+// */benchmark run on a desktop JVM. Only warnings and errors are printed.
+// Never packaged with an extension.
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private Log() {
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return level >= WARN;
+    }
+
+    public static int v(String tag, String message) { return 0; }
+    public static int d(String tag, String message) { return 0; }
+    public static int i(String tag, String message) { return 0; }
+
+    public static int w(String tag, String message) {
+        System.err.println("W/" + tag + ": " + message);
+        return 0;
+    }
+
+    public static int e(String tag, String message) {
+        System.err.println("E/" + tag + ": " + message);
+        return 0;
+    }
+}
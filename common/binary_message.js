@@ -0,0 +1,48 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+// Decodes the messages written by BinaryMessageWriter.java, see there for the
+// layout. Prepended to the JS API of the extensions which use it.
+var BinaryMessage = {
+  MARKER: 1,
+  NO_CALL_ID: -1,
+
+  // JSON messages are sent on the same channel.
+  isBinary: function(message) {
+    return message.charCodeAt(0) === BinaryMessage.MARKER;
+  },
+
+  // Returns the frames of |message| as
+  //   { type, callId, payload: Uint8Array, view: DataView over payload }.
+  // The payloads share one buffer, copy them to keep them.
+  decode: function(message) {
+    var length = message.length;
+    var bytes = new Uint8Array(length - 1);
+    for (var i = 1; i < length; i++)
+      bytes[i - 1] = message.charCodeAt(i);
+
+    var view = new DataView(bytes.buffer);
+    var frames = [];
+    var offset = 0;
+    while (offset + 9 <= bytes.length) {
+      var type = view.getUint8(offset);
+      var callId = view.getInt32(offset + 1);
+      var payloadLength = view.getUint32(offset + 5);
+      offset += 9;
+      if (offset + payloadLength > bytes.length)
+        throw new Error('Truncated binary message');
+
+      frames.push({
+        'type': type,
+        'callId': callId,
+        'payload': bytes.subarray(offset, offset + payloadLength),
+        'view': new DataView(bytes.buffer, offset, payloadLength)
+      });
+      offset += payloadLength;
+    }
+    if (offset != bytes.length)
+      throw new Error('Truncated binary message');
+    return frames;
+  }
+};
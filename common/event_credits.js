@@ -0,0 +1,24 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+// Returns the credits of the event messages handled by the page to
+// EventPublisher.java, in one message per turn of the event loop: a busy page
+// returns them late and gets fewer events meanwhile.
+var EventCredits = {
+  _count: 0,
+
+  // Call for every event message, it is counted once the listeners are done.
+  handled: function() {
+    if (EventCredits._count++ == 0)
+      setTimeout(EventCredits._return, 0);
+  },
+
+  _return: function() {
+    extension.postMessage(JSON.stringify({
+      'cmd': 'eventCredits',
+      'count': EventCredits._count
+    }));
+    EventCredits._count = 0;
+  }
+};
@@ -0,0 +1,116 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.common;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Write binary messages for the string based extension channel.
+ *
+ * Every byte is packed into one char in 0..255 (latin-1), so neither side
+ * goes through base64 or JSON for it. The channel is UTF-8 encoded though,
+ * chars 0x80..0xff take two bytes there: compressed data costs about 1.5
+ * bytes per byte, more than the 4/3 of base64. A message is MARKER then one
+ * or more frames:
+ *
+ *   type      uint8
+ *   callId    int32, big endian, NO_CALL_ID for events
+ *   length    uint32, big endian, of the payload
+ *   payload   length bytes
+ *
+ * MARKER cannot start a JSON text, so JSON messages keep working on the same
+ * channel. binary_message.js decodes the frames into typed arrays.
+ *
+ * Not thread safe, reuse one writer per sending thread.
+ */
+public class BinaryMessageWriter {
+    public static final char MARKER = 1;
+    public static final int NO_CALL_ID = -1;
+
+    private static final int HEADER_SIZE = 9;
+
+    private final StringBuilder mBuilder;
+    // Where the length of the open frame goes, -1 when no frame is open.
+    private int mLengthPosition;
+
+    public BinaryMessageWriter(int capacity) {
+        mBuilder = new StringBuilder(capacity);
+        mLengthPosition = -1;
+    }
+
+    // Start a new message, dropping what was written before.
+    public BinaryMessageWriter begin() {
+        mBuilder.setLength(0);
+        mBuilder.append(MARKER);
+        mLengthPosition = -1;
+        return this;
+    }
+
+    public BinaryMessageWriter beginFrame(int type, int callId) {
+        if (mLengthPosition >= 0) endFrame();
+        mBuilder.ensureCapacity(mBuilder.length() + HEADER_SIZE);
+        putByte(type);
+        putInt(callId);
+        mLengthPosition = mBuilder.length();
+        putInt(0);
+        return this;
+    }
+
+    public BinaryMessageWriter putByte(int value) {
+        mBuilder.append((char) (value & 0xff));
+        return this;
+    }
+
+    public BinaryMessageWriter putBoolean(boolean value) {
+        return putByte(value ? 1 : 0);
+    }
+
+    public BinaryMessageWriter putShort(int value) {
+        putByte(value >>> 8);
+        return putByte(value);
+    }
+
+    public BinaryMessageWriter putInt(int value) {
+        putByte(value >>> 24);
+        putByte(value >>> 16);
+        putByte(value >>> 8);
+        return putByte(value);
+    }
+
+    public BinaryMessageWriter putDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        putInt((int) (bits >>> 32));
+        return putInt((int) bits);
+    }
+
+    // The remaining bytes of |data|, its position is left as it was.
+    public BinaryMessageWriter putBytes(ByteBuffer data) {
+        int end = data.limit();
+        mBuilder.ensureCapacity(mBuilder.length() + end - data.position());
+        for (int i = data.position(); i < end; i++) {
+            mBuilder.append((char) (data.get(i) & 0xff));
+        }
+        return this;
+    }
+
+    // Fill in the length of the open frame.
+    public BinaryMessageWriter endFrame() {
+        if (mLengthPosition < 0) return this;
+
+        int length = mBuilder.length() - mLengthPosition - 4;
+        mBuilder.setCharAt(mLengthPosition, (char) (length >>> 24));
+        mBuilder.setCharAt(mLengthPosition + 1, (char) ((length >>> 16) & 0xff));
+        mBuilder.setCharAt(mLengthPosition + 2, (char) ((length >>> 8) & 0xff));
+        mBuilder.setCharAt(mLengthPosition + 3, (char) (length & 0xff));
+        mLengthPosition = -1;
+        return this;
+    }
+
+    // The message, closing the open frame if any.
+    public String build() {
+        endFrame();
+        return mBuilder.toString();
+    }
+}
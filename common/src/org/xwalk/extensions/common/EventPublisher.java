@@ -0,0 +1,240 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Publish the events of an extension without getting ahead of the page.
+ *
+ * The page returns a credit for every event message it has handled, see
+ * event_credits.js, so at most |credits| of them are on their way. Beyond
+ * that, or sooner than the minimum interval of its type, an event waits in
+ * the one slot of its type and a newer event of the type replaces it: a busy
+ * page gets the latest value late, instead of every value later and later.
+ *
+ * Events which cannot be replaced, like a video frame the next one depends
+ * on, go through offer() and are dropped instead. Thread safe.
+ */
+public class EventPublisher {
+    public interface Sender {
+        void send(String message);
+    }
+
+    // The page has not returned any credit for that long, they are taken as
+    // lost, e.g. because the page was reloaded, and given back.
+    private static final long CREDIT_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+
+    private static final class EventType {
+        final String mName;
+        long mMinInterval;
+        // Nothing of this type is sent before then.
+        long mNextSend;
+        String mPending;
+        long mSent;
+        long mCoalesced;
+        long mDropped;
+
+        EventType(String name, long now) {
+            mName = name;
+            mNextSend = now;
+        }
+    }
+
+    private final Sender mSender;
+    private final int mMaxCredits;
+    private int mCredits;
+    // When the page last returned credits, or the first one went out.
+    private long mLastCredit;
+    private long mCreditTimeouts;
+
+    private final HashMap<String, EventType> mTypes;
+    // The types with a pending event, in the order they are to be sent.
+    private final ArrayList<EventType> mPending;
+
+    private Timer mTimer;
+    // When the timer runs next, valid if mFlushScheduled.
+    private long mFlushAt;
+    private boolean mFlushScheduled;
+
+    public EventPublisher(Sender sender, int credits) {
+        mSender = sender;
+        mMaxCredits = credits;
+        mCredits = credits;
+        mLastCredit = System.nanoTime();
+        mTypes = new HashMap<String, EventType>();
+        mPending = new ArrayList<EventType>();
+        mTimer = new Timer("EventPublisher", true);
+    }
+
+    // Send events of |type| at most once per |milliseconds|.
+    public synchronized void setMinInterval(String type, long milliseconds) {
+        type(type, System.nanoTime()).mMinInterval = TimeUnit.MILLISECONDS.toNanos(milliseconds);
+    }
+
+    // Send |message| now if the page and the rate of |type| allow it,
+    // otherwise when they do unless another event of |type| comes first.
+    public synchronized void publish(String type, String message) {
+        long now = System.nanoTime();
+        EventType t = type(type, now);
+        if (t.mPending != null) {
+            t.mPending = message;
+            ++t.mCoalesced;
+            return;
+        }
+
+        // The pending events only wait for their own interval, they got the
+        // credits first.
+        if (canSend(t, now)) {
+            send(t, message, now);
+            return;
+        }
+
+        t.mPending = message;
+        mPending.add(t);
+        scheduleFlush(now);
+    }
+
+    // Send |message| now if the page and the rate of |type| allow it, return
+    // false and drop it otherwise.
+    public synchronized boolean offer(String type, String message) {
+        long now = System.nanoTime();
+        EventType t = type(type, now);
+        if (!canSend(t, now)) {
+            ++t.mDropped;
+            return false;
+        }
+
+        send(t, message, now);
+        return true;
+    }
+
+    // Count an event of |type| the caller dropped without offering it.
+    public synchronized void drop(String type) {
+        ++type(type, System.nanoTime()).mDropped;
+    }
+
+    // The page has handled |count| more event messages.
+    public synchronized void onCredits(int count) {
+        mCredits = Math.min(mCredits + Math.max(count, 0), mMaxCredits);
+        mLastCredit = System.nanoTime();
+        flush();
+    }
+
+    // Drop the pending events, e.g. when the source of the events stops.
+    public synchronized void clear() {
+        for (EventType t : mPending) {
+            t.mPending = null;
+            ++t.mDropped;
+        }
+        mPending.clear();
+    }
+
+    public synchronized void close() {
+        clear();
+        if (mTimer == null) return;
+        mTimer.cancel();
+        mTimer = null;
+    }
+
+    public synchronized JSONObject toJSON() throws JSONException {
+        JSONObject out = new JSONObject();
+        out.put("credits", mCredits);
+        out.put("creditTimeouts", mCreditTimeouts);
+
+        JSONObject types = new JSONObject();
+        for (EventType t : mTypes.values()) {
+            JSONObject type = new JSONObject();
+            type.put("sent", t.mSent);
+            type.put("coalesced", t.mCoalesced);
+            type.put("dropped", t.mDropped);
+            type.put("pending", t.mPending != null);
+            types.put(t.mName, type);
+        }
+        out.put("types", types);
+        return out;
+    }
+
+    private EventType type(String name, long now) {
+        EventType t = mTypes.get(name);
+        if (t == null) {
+            t = new EventType(name, now);
+            mTypes.put(name, t);
+        }
+        return t;
+    }
+
+    private boolean canSend(EventType t, long now) {
+        if (mCredits == 0 && now - mLastCredit >= CREDIT_TIMEOUT) {
+            mCredits = mMaxCredits;
+            mLastCredit = now;
+            ++mCreditTimeouts;
+        }
+        return mCredits > 0 && now - t.mNextSend >= 0;
+    }
+
+    private void send(EventType t, String message, long now) {
+        if (mCredits == mMaxCredits) mLastCredit = now;
+        --mCredits;
+        t.mNextSend = now + t.mMinInterval;
+        ++t.mSent;
+        mSender.send(message);
+    }
+
+    // Send the pending events which can go now, in order, and schedule the
+    // timer for the others.
+    private void flush() {
+        long now = System.nanoTime();
+        for (int i = 0; i < mPending.size(); ) {
+            EventType t = mPending.get(i);
+            if (!canSend(t, now)) {
+                if (mCredits == 0) break;
+                ++i;
+                continue;
+            }
+
+            String message = t.mPending;
+            t.mPending = null;
+            mPending.remove(i);
+            send(t, message, now);
+        }
+        if (!mPending.isEmpty()) scheduleFlush(now);
+    }
+
+    private void scheduleFlush(long now) {
+        if (mTimer == null) return;
+
+        long at;
+        if (mCredits == 0) {
+            // Credits come back with a message, unless the page never answers.
+            at = mLastCredit + CREDIT_TIMEOUT;
+        } else {
+            at = mPending.get(0).mNextSend;
+            for (EventType t : mPending) {
+                if (t.mNextSend - at < 0) at = t.mNextSend;
+            }
+        }
+        if (mFlushScheduled && mFlushAt - at <= 0) return;
+
+        mFlushAt = at;
+        mFlushScheduled = true;
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (EventPublisher.this) {
+                    mFlushScheduled = false;
+                    flush();
+                }
+            }
+        }, Math.max(0, TimeUnit.NANOSECONDS.toMillis(at - now + 999999)));
+    }
+}
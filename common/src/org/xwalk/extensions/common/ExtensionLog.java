@@ -0,0 +1,68 @@
+// Copyright (c) 2014 Intel Corporation. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.xwalk.extensions.common;
+
+import android.util.Log;
+
+/*
+ * Logging of an extension.
+ *
+ * Levels are resolved once from the tag of the extension, e.g.
+ * "adb shell setprop log.tag.ARDroneVideo VERBOSE" before starting the app.
+ * Each extension holds one instance next to its compile-time TRACE switch:
+ *
+ *   final class ARDroneVideoLog {
+ *       static final boolean TRACE = false;
+ *       static final ExtensionLog LOG = new ExtensionLog("ARDroneVideo");
+ *   }
+ *
+ * Per-frame or per-command statements are trace statements, written as
+ *
+ *   if (ARDroneVideoLog.TRACE) ARDroneVideoLog.LOG.trace(TAG, "Payload size: ", size);
+ *
+ * or, when the message is costly to build,
+ *
+ *   if (ARDroneVideoLog.TRACE && ARDroneVideoLog.LOG.isTraceEnabled()) { ... }
+ *
+ * With TRACE false, javac leaves them out of the class files altogether, and
+ * with TRACE true no string is built unless VERBOSE is enabled.
+ */
+public final class ExtensionLog {
+    private final boolean mVerbose;
+    private final boolean mInfo;
+    private final boolean mWarn;
+
+    public ExtensionLog(String tag) {
+        mVerbose = Log.isLoggable(tag, Log.VERBOSE);
+        mInfo = Log.isLoggable(tag, Log.INFO);
+        mWarn = Log.isLoggable(tag, Log.WARN);
+    }
+
+    public boolean isTraceEnabled() { return mVerbose; }
+
+    public void trace(String tag, String message) {
+        if (mVerbose) Log.v(tag, message);
+    }
+
+    public void trace(String tag, String message, long value) {
+        if (mVerbose) Log.v(tag, message + value);
+    }
+
+    public void trace(String tag, String message, String value) {
+        if (mVerbose) Log.v(tag, message + value);
+    }
+
+    public void i(String tag, String message) {
+        if (mInfo) Log.i(tag, message);
+    }
+
+    public void w(String tag, String message) {
+        if (mWarn) Log.w(tag, message);
+    }
+
+    public void e(String tag, String message) {
+        Log.e(tag, message);
+    }
+}
@@ -27,6 +27,7 @@
     'java_source_list': [
       '<(gen_java_file)',
       'src/org/xwalk/extensions/<(component)_impl.java',
+      '../common/src/org/xwalk/extensions/common/EventPublisher.java',
     ],
   },
 
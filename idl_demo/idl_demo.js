@@ -1,7 +1,7 @@
 function handleCalculate(msg) {
-  if (typeof msg.sum === 'undefined') {
+  if (typeof msg.data === 'undefined') {
     console.log('Received unexpected msg: ' + JSON.stringify(msg));
     return;
   }
-  g_async_calls[msg.asyncCallId].resolve(msg.sum * 2);
+  g_async_calls[msg.asyncCallId].resolve(msg.data * 2);
 }
@@ -8,54 +8,46 @@ import android.util.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+// The on<Method>() signatures follow idl_demo.idl, the generated idl_demo
+// reads the arguments from the message and writes the result into the reply.
 public class idl_demo_impl {
     private static final String TAG = "idl_demo_impl";
     private final idl_demo mBase;
 
     public idl_demo_impl(idl_demo instance) {
         mBase = instance;
+        // At most 10 demo events per second, however often hi() is called.
+        mBase.events().setMinInterval(CMD_DEMOEVENT, 100);
     }
 
-    public JSONObject onDummy(JSONObject input) {
-        return null;
+    public void onDummy() {
     }
 
     // 1. Test event handler
     // 2. Add string to input string and return back to JS
-    public JSONObject onHi(JSONObject input) {
+    public String onHi(String words) {
         testEventHandler();
-        try {
-            JSONObject o = new JSONObject();
-            o.put("data", "Hi from Java - you said: " + input.getString("words"));
-            return o;
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            return null;
-        }
+        return "Hi from Java - you said: " + words;
     }
 
     // Return a + b
-    public JSONObject onCalculate(JSONObject input) {
-        try {
-            JSONObject o = new JSONObject();
-            long a = input.getLong("a");
-            long b = input.getLong("b");
-            o.put("sum", a + b);
-            return o;
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            return null;
-        }
+    public long onCalculate(long a, long b) {
+        return a + b;
+    }
+
+    // Return a + b, called with a sync message
+    public long onSum(long a, long b) {
+        return a + b;
     }
 
-    // Broadcast event to JS
+    // Publish event to JS, a newer one replaces it while the page is busy
     private static final String CMD_DEMOEVENT = "demoevent";
     private void testEventHandler() {
         try {
             JSONObject o = new JSONObject();
             o.put("cmd", CMD_DEMOEVENT);
             o.put("data", "Demo event triggered");
-            mBase.broadcastMessage(o.toString());
+            mBase.events().publish(CMD_DEMOEVENT, o.toString());
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
         }